@@ -0,0 +1,68 @@
+package com.swathub.jenkins.execution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response handling of a job query: parsing alone, and the whole gzipped call to a local
+ * {@link FakeSwatHub} through {@link Utils#apiQuery}, answered in full or not modified.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ApiQueryBenchmark {
+	@Param({"10", "1000", "10000", "50000"})
+	public int tasks;
+
+	private FakeSwatHub hub;
+	private String queryUrl;
+	private String etag;
+	private ClientSettings settings;
+	private byte[] payload;
+
+	@Setup
+	public void setUp() throws Exception {
+		hub = new FakeSwatHub();
+		hub.addJob("job-1", tasks, 0, 10);
+		settings = new ClientSettings(5, 10, 60, 0, 20, 5, 30, false, 0);
+		queryUrl = hub.getApiBase() + "/jobs/job-1/query";
+		etag = new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings).getETag();
+		payload = Payloads.json(tasks, tasks);
+	}
+
+	@TearDown
+	public void tearDown() {
+		hub.stop();
+	}
+
+	@Benchmark
+	public JobStatus parse() throws Exception {
+		return JobStatus.parse(new ByteArrayInputStream(payload));
+	}
+
+	@Benchmark
+	public JobStatus query() throws Exception {
+		return new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings);
+	}
+
+	@Benchmark
+	public JobStatus queryNotModified() throws Exception {
+		return new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings, etag);
+	}
+}
@@ -0,0 +1,72 @@
+package com.swathub.jenkins.execution;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a job query response with {@link JobStatus#parse}, compared with the earlier
+ * path that read the response into a <tt>StringBuffer</tt> and built a json-lib tree.
+ * Run with <tt>-prof gc</tt> to compare the allocation per parse as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JobStatusParseBenchmark {
+	@Param({"100", "1000", "10000"})
+	public int tasks;
+
+	private byte[] payload;
+
+	@Setup
+	public void setUp() throws Exception {
+		payload = Payloads.json(tasks, tasks / 2);
+	}
+
+	@Benchmark
+	public JobStatus streaming() throws Exception {
+		return JobStatus.parse(new ByteArrayInputStream(payload));
+	}
+
+	@Benchmark
+	public void jsonLib(Blackhole blackhole) throws Exception {
+		BufferedReader rd = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(payload)));
+		StringBuffer result = new StringBuffer();
+		String line;
+		while ((line = rd.readLine()) != null) {
+			result.append(line);
+		}
+		JSONObject job = JSONObject.fromObject(result.toString());
+
+		blackhole.consume(job.getString("status"));
+		JSONArray tasks = job.getJSONArray("tasks");
+		for (int i = 0; i < tasks.size(); i++) {
+			JSONObject task = tasks.getJSONObject(i);
+			blackhole.consume(task.getString("taskID"));
+			blackhole.consume(task.getString("status"));
+			blackhole.consume(task.getString("description"));
+			blackhole.consume(task.optDouble("duration", 0));
+			blackhole.consume(task.optString("error", null));
+			blackhole.consume(task.optString("resultID", null));
+		}
+	}
+}
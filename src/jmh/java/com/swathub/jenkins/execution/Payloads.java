@@ -0,0 +1,40 @@
+package com.swathub.jenkins.execution;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic job query results for the benchmarks, in the format of {@link FakeSwatHub}.
+ */
+class Payloads {
+	/**
+	 * Returns the response body of a job query with <tt>completed</tt> of <tt>tasks</tt> tasks done.
+	 */
+	static byte[] json(int tasks, int completed) throws IOException {
+		return FakeSwatHub.jobJson("job-1", tasks, completed, 40).getBytes("UTF-8");
+	}
+
+	static JobStatus status(int tasks, int completed) throws IOException {
+		return JobStatus.parse(new ByteArrayInputStream(json(tasks, completed)));
+	}
+
+	/**
+	 * Returns the task lists of <tt>polls</tt> full queries of a job, over which the tasks
+	 * complete evenly. The lists share their task objects, to keep the heap small for 50k tasks.
+	 */
+	static List<List<JobStatus.Task>> polls(int tasks, int polls) throws IOException {
+		List<JobStatus.Task> running = status(tasks, 0).getTasks();
+		List<JobStatus.Task> finished = status(tasks, tasks).getTasks();
+		List<List<JobStatus.Task>> ret = new ArrayList<List<JobStatus.Task>>();
+		for (int poll = 1; poll <= polls; poll++) {
+			int completed = (int) ((long) tasks * poll / polls);
+			List<JobStatus.Task> list = new ArrayList<JobStatus.Task>(tasks);
+			list.addAll(finished.subList(0, completed));
+			list.addAll(running.subList(completed, tasks));
+			ret.add(list);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,60 @@
+package com.swathub.jenkins.execution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task scanning of the poll loop: merging full task lists into a {@link TaskTracker}, for
+ * a whole job of 20 polls and for a poll in which nothing changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PollLoopBenchmark {
+	private static final int POLLS = 20;
+
+	@Param({"10", "1000", "10000", "50000"})
+	public int tasks;
+
+	private List<List<JobStatus.Task>> polls;
+	private TaskTracker halfDone;
+
+	@Setup
+	public void setUp() throws Exception {
+		polls = Payloads.polls(tasks, POLLS);
+		halfDone = new TaskTracker();
+		halfDone.update(polls.get(POLLS / 2));
+	}
+
+	@Benchmark
+	public int wholeJob(Blackhole blackhole) {
+		TaskTracker tracker = new TaskTracker();
+		for (List<JobStatus.Task> poll : polls) {
+			for (TaskTracker.Transition transition : tracker.update(poll)) {
+				blackhole.consume(transition.getTask().getDescription());
+			}
+		}
+		return tracker.getCompletedCount();
+	}
+
+	@Benchmark
+	public List<TaskTracker.Transition> unchangedPoll() {
+		return halfDone.update(polls.get(POLLS / 2));
+	}
+}
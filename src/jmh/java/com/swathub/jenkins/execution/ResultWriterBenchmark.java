@@ -0,0 +1,62 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing <tt>swat_result.xml</tt> with {@link ResultWriter}, one completed task at a time,
+ * and the final report with its totals.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ResultWriterBenchmark {
+	@Param({"10", "1000", "10000", "50000"})
+	public int tasks;
+
+	private File file;
+	private List<JobStatus.Task> completed;
+	private ExecutionJob job;
+
+	@Setup
+	public void setUp() throws Exception {
+		file = File.createTempFile("swat_result", ".xml");
+		completed = Payloads.status(tasks, tasks).getTasks();
+		job = new ExecutionJob("set", "", QueryMode.FULL);
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public long write() throws Exception {
+		FilePath resultFile = new FilePath(file);
+		ResultWriter writer = new ResultWriter(resultFile, Collections.singletonList(job));
+		for (JobStatus.Task task : completed) {
+			writer.add(job, task);
+		}
+		writer.finish();
+		return resultFile.length();
+	}
+}
@@ -0,0 +1,74 @@
+package com.swathub.jenkins.execution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java serialization round trips of what crosses the remoting channel: a query callable,
+ * the job status it returns, and a job with its pending tasks, as sent to the agent with
+ * the runner and persisted with a pipeline step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerializationBenchmark {
+	@Param({"10", "1000", "10000", "50000"})
+	public int tasks;
+
+	private MeteredCallable<JobStatus> callable;
+	private JobStatus status;
+	private ExecutionJob job;
+
+	@Setup
+	public void setUp() throws Exception {
+		callable = new MeteredCallable<JobStatus>(new ExecutionBuilder.GetCallable("https://swathub.example/api/owner/workspace/jobs/job-1/query",
+				"user", "key", FakeSwatHub.noProxy(), ClientSettings.defaults(), QueryMode.DELTA, "r1", 0, "\"r1\""));
+		status = Payloads.status(tasks, tasks / 2);
+		job = new ExecutionJob("set", "testSetID=1", QueryMode.DELTA);
+		job.submitted("job-1");
+		job.update(status);
+	}
+
+	@Benchmark
+	public Object callable() throws Exception {
+		return roundTrip(callable);
+	}
+
+	@Benchmark
+	public Object jobStatus() throws Exception {
+		return roundTrip(status);
+	}
+
+	@Benchmark
+	public Object executionJob() throws Exception {
+		return roundTrip(job);
+	}
+
+	private static Object roundTrip(Serializable object) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+	}
+}
@@ -0,0 +1,130 @@
+package com.swathub.jenkins.execution;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps the number of running SWAT Hub jobs per workspace. The queues are kept on the
+ * master, also for builds whose execution loop runs on the agent, see
+ * {@link ExecutionRunner#admit}.
+ *
+ * <p>
+ * A job over the cap waits for its <tt>/run</tt> call in a first-come, first-served queue,
+ * without blocking its build: the runner asks again with {@link #tryAcquire} on each poll
+ * cycle, and its position is printed whenever it changes. A freed slot wakes the scheduler
+ * of the job at the head of the queue. A slot is held until the job completes or the build
+ * ends.
+ */
+public class AdmissionQueue {
+	private static final ConcurrentHashMap<String, AdmissionQueue> queues = new ConcurrentHashMap<String, AdmissionQueue>();
+
+	private final LinkedHashMap<Object, Waiter> waiting = new LinkedHashMap<Object, Waiter>();
+	private int running;
+
+	private static class Waiter {
+		private final PollScheduler scheduler;
+		private int lastPosition;
+
+		private Waiter(PollScheduler scheduler) {
+			this.scheduler = scheduler;
+		}
+	}
+
+	/**
+	 * Returns the queue of a workspace, keyed by its API base URL.
+	 */
+	public static AdmissionQueue get(String apiBase) {
+		AdmissionQueue queue = queues.get(apiBase);
+		if (queue == null) {
+			AdmissionQueue created = new AdmissionQueue();
+			queue = queues.putIfAbsent(apiBase, created);
+			if (queue == null) {
+				queue = created;
+			}
+		}
+		return queue;
+	}
+
+	/**
+	 * Takes a free slot for <tt>job</tt> if it is first in the queue, or else queues it.
+	 * Never blocks. A taken slot must be given back with {@link #release()}, a job still in
+	 * the queue when its build ends must be dropped with {@link #cancel(Object)}.
+	 *
+	 * @param maxRunning
+	 *      the number of jobs that may run at once.
+	 * @param scheduler
+	 *      woken when a slot is freed while the job is first in the queue.
+	 * @param logger
+	 *      receives the queue position whenever it changes.
+	 * @return true if the slot was taken
+	 */
+	public synchronized boolean tryAcquire(Object job, int maxRunning, PollScheduler scheduler, PrintStream logger, String prefix) {
+		Waiter waiter = waiting.get(job);
+		if (waiter == null) {
+			waiter = new Waiter(scheduler);
+			waiting.put(job, waiter);
+		}
+
+		if (running < maxRunning && waiting.keySet().iterator().next() == job) {
+			waiting.remove(job);
+			running++;
+			return true;
+		}
+
+		int position = getPosition(job);
+		if (position != waiter.lastPosition) {
+			logger.println(prefix + "waiting for one of the " + maxRunning + " job slots of the workspace, position " +
+					position + " of " + waiting.size() + " in the queue");
+			waiter.lastPosition = position;
+		}
+		return false;
+	}
+
+	/**
+	 * Counts a job that is already running, such as one restored with its jobID after a
+	 * restart, whether or not a slot is free. Its slot is given back with {@link #release()}.
+	 */
+	public synchronized void acquireRunning() {
+		running++;
+	}
+
+	public synchronized void release() {
+		running = Math.max(running - 1, 0);
+		wakeFirst();
+	}
+
+	/**
+	 * Drops a job from the queue, if it is waiting.
+	 */
+	public synchronized void cancel(Object job) {
+		if (waiting.remove(job) != null) {
+			wakeFirst();
+		}
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized int getWaiting() {
+		return waiting.size();
+	}
+
+	private int getPosition(Object job) {
+		int position = 1;
+		for (Object waiter : waiting.keySet()) {
+			if (waiter == job) {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	private void wakeFirst() {
+		if (!waiting.isEmpty()) {
+			waiting.values().iterator().next().scheduler.wake();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.swathub.jenkins.execution;
+
+/**
+ * Thrown when a SWAT Hub API call returns a status other than 200.
+ */
+public class ApiException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	public ApiException(int statusCode) {
+		super("SWAT Hub api call return false." + statusCode);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+}
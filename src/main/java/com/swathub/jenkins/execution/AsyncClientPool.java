@@ -0,0 +1,323 @@
+package com.swathub.jenkins.execution;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.ProxyAuthenticationStrategy;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.ContentInputStream;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncMethods;
+import org.apache.http.nio.util.SharedInputBuffer;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking counterpart of {@link ClientPool}, used when {@link ClientSettings#isAsync()} is set.
+ *
+ * <p>
+ * All calls share one client, whose connections are multiplexed over a single NIO reactor
+ * with {@link #IO_THREADS} I/O threads and one dispatcher thread, however many builds,
+ * users and SWAT Hub domains there are. The credentials and the proxy of a call are set
+ * per request instead of per client.
+ *
+ * <p>
+ * A call completes through a callback as soon as the response head has arrived. Its body
+ * is streamed through a buffer of {@link #BUFFER_SIZE} bytes, reading from the socket is
+ * suspended while the buffer is full, and a gzip or deflate body is decompressed as it is
+ * read. NIO sockets never use the JVM's SOCKS proxy, so no socket factory is needed to
+ * bypass it.
+ */
+public class AsyncClientPool {
+	public static final int IO_THREADS = 2;
+
+	public static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final long MAX_IDLE_SECONDS = 60;
+
+	private static CloseableHttpAsyncClient client;
+	private static PoolingNHttpClientConnectionManager connManager;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("SWAT Hub async client pool shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	private static final ThreadFactory threadFactory = new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SWAT Hub I/O " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * Sends a request and calls <tt>callback</tt> on an I/O thread with the response as soon
+	 * as its head has arrived, or with the failure. The callback must not block; the body of
+	 * the response is read and closed by whoever the callback hands it to.
+	 *
+	 * @return the future of the whole exchange, which can be cancelled to abort it
+	 */
+	public static Future<HttpResponse> execute(HttpRequestBase request, String accessKey, String secretKey,
+			HashMap<String, String> proxy, ClientSettings settings, final FutureCallback<HttpResponse> callback) throws Exception {
+		CredentialsProvider credsProvider = new BasicCredentialsProvider();
+		credsProvider.setCredentials(AuthScope.ANY,
+				new UsernamePasswordCredentials(accessKey, secretKey));
+		RequestConfig.Builder config = RequestConfig.copy(request.getConfig() != null ? request.getConfig() : RequestConfig.DEFAULT);
+		if (!proxy.get("server").isEmpty()) {
+			credsProvider.setCredentials(
+					new AuthScope(proxy.get("server"), Integer.parseInt(proxy.get("port"))),
+					new UsernamePasswordCredentials(proxy.get("username"), proxy.get("password")));
+			config.setProxy(new HttpHost(proxy.get("server"), Integer.parseInt(proxy.get("port"))));
+		}
+		request.setConfig(config.build());
+		if (!request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+			request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+		}
+		HttpClientContext context = HttpClientContext.create();
+		context.setCredentialsProvider(credsProvider);
+
+		final StreamingConsumer consumer = new StreamingConsumer(callback);
+		return getClient(settings).execute(HttpAsyncMethods.create(request), consumer, context, new FutureCallback<HttpResponse>() {
+			public void completed(HttpResponse response) {
+				// the callback has had the response since its head arrived
+			}
+
+			public void failed(Exception e) {
+				consumer.abort();
+				if (consumer.deliver()) {
+					callback.failed(e);
+				}
+			}
+
+			public void cancelled() {
+				consumer.abort();
+				if (consumer.deliver()) {
+					callback.cancelled();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends a request and waits for the head of its response, for the blocking callers in
+	 * {@link Utils}. The body is read from the returned response while it is still arriving.
+	 */
+	public static HttpResponse execute(HttpRequestBase request, String accessKey, String secretKey,
+			HashMap<String, String> proxy, ClientSettings settings) throws Exception {
+		final BasicFuture<HttpResponse> head = new BasicFuture<HttpResponse>(null);
+		Future<HttpResponse> exchange = execute(request, accessKey, secretKey, proxy, settings, new FutureCallback<HttpResponse>() {
+			public void completed(HttpResponse response) {
+				head.completed(response);
+			}
+
+			public void failed(Exception e) {
+				head.failed(e);
+			}
+
+			public void cancelled() {
+				head.cancel(true);
+			}
+		});
+		try {
+			return head.get();
+		} catch (InterruptedException e) {
+			exchange.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the shared client, its connections and I/O threads. It is created again on next use.
+	 */
+	public static synchronized void shutdown() {
+		if (client != null) {
+			try {
+				client.close();
+			} catch (Exception e) {
+
+			}
+			client = null;
+			connManager = null;
+		}
+	}
+
+	private static synchronized CloseableHttpAsyncClient getClient(ClientSettings settings) throws Exception {
+		int maxPerRoute = settings.getMaxPerRoute();
+		if (client == null) {
+			Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+					.register("http", NoopIOSessionStrategy.INSTANCE)
+					.register("https", new SSLIOSessionStrategy(SSLContext.getDefault(), split(System.getProperty("https.protocols")),
+							split(System.getProperty("https.cipherSuites")), SSLIOSessionStrategy.getDefaultHostnameVerifier()))
+					.build();
+			DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(
+					IOReactorConfig.custom().setIoThreadCount(IO_THREADS).build(), threadFactory);
+			connManager = new PoolingNHttpClientConnectionManager(ioReactor, registry);
+			connManager.setDefaultMaxPerRoute(maxPerRoute);
+			connManager.setMaxTotal(Math.max(maxPerRoute * 4, 20));
+
+			HttpAsyncClientBuilder clientBuilder = HttpAsyncClients.custom();
+			clientBuilder.useSystemProperties();
+			clientBuilder.setRoutePlanner(new SystemDefaultRoutePlanner(ClientPool.getHttpProxySelector(ProxySelector.getDefault())));
+			clientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+			clientBuilder.setConnectionManager(connManager);
+			clientBuilder.setKeepAliveStrategy(ClientPool.getKeepAliveStrategy());
+			clientBuilder.setThreadFactory(threadFactory);
+			client = clientBuilder.build();
+			client.start();
+		}
+
+		if (connManager.getDefaultMaxPerRoute() != maxPerRoute) {
+			connManager.setDefaultMaxPerRoute(maxPerRoute);
+			connManager.setMaxTotal(Math.max(maxPerRoute * 4, 20));
+		}
+		// there is no eviction thread, so stale connections are dropped as the client is used
+		connManager.closeExpiredConnections();
+		connManager.closeIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+
+		return client;
+	}
+
+	/**
+	 * Hands the response to the callback when its head arrives, and its body through a
+	 * bounded buffer as it arrives.
+	 */
+	private static class StreamingConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
+		private final FutureCallback<HttpResponse> callback;
+		private final SharedInputBuffer buffer = new SharedInputBuffer(BUFFER_SIZE);
+		private final AtomicBoolean delivered = new AtomicBoolean();
+		private HttpResponse response;
+
+		private StreamingConsumer(FutureCallback<HttpResponse> callback) {
+			this.callback = callback;
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			this.response = response;
+			HttpEntity entity = response.getEntity();
+			if (entity != null) {
+				BasicHttpEntity streamed = new BasicHttpEntity();
+				streamed.setContent(new ContentInputStream(buffer));
+				streamed.setContentLength(entity.getContentLength());
+				streamed.setContentType(entity.getContentType());
+				streamed.setContentEncoding(entity.getContentEncoding());
+				response.setEntity(decompress(response, streamed));
+			}
+			if (deliver()) {
+				callback.completed(response);
+			}
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+			buffer.consumeContent(decoder, ioctrl);
+		}
+
+		@Override
+		protected HttpResponse buildResult(HttpContext context) {
+			return response;
+		}
+
+		@Override
+		protected void releaseResources() {
+
+		}
+
+		/**
+		 * Returns true the first time it is called, when the callback is still to be called.
+		 */
+		private boolean deliver() {
+			return delivered.compareAndSet(false, true);
+		}
+
+		/**
+		 * Fails the reads of a body that will not arrive to the end.
+		 */
+		private void abort() {
+			buffer.shutdown();
+		}
+
+		private static HttpEntity decompress(HttpResponse response, HttpEntity entity) {
+			Header encoding = entity.getContentEncoding();
+			if (encoding == null) {
+				return entity;
+			}
+			String value = encoding.getValue().trim().toLowerCase(Locale.ROOT);
+			HttpEntity decompressed;
+			if (value.equals("gzip") || value.equals("x-gzip")) {
+				decompressed = new GzipDecompressingEntity(entity);
+			} else if (value.equals("deflate")) {
+				decompressed = new DeflateDecompressingEntity(entity);
+			} else {
+				return entity;
+			}
+			response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+			response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+			response.removeHeaders(HttpHeaders.CONTENT_MD5);
+			return decompressed;
+		}
+	}
+
+	private static String[] split(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		return value.trim().split(" *, *");
+	}
+}
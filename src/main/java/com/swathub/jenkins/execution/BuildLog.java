@@ -0,0 +1,122 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The <tt>swathub.log</tt> of one build.
+ *
+ * <p>
+ * Lines go into a bounded queue and are written to the log file in the background, so a
+ * long run neither keeps its whole log in memory nor shares a logger with other builds.
+ * When the queue is full, new lines are dropped and counted. {@link #close()} must be
+ * called when the build step ends; it writes what is left and closes the file.
+ */
+public class BuildLog {
+	private static final int QUEUE_SIZE = 10000;
+	private static final long FLUSH_INTERVAL = 1000;
+
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SWAT Hub build log flusher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final BlockingQueue<String> lines = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+	private final AtomicInteger dropped = new AtomicInteger();
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+	private final Writer out;
+	private final ScheduledFuture<?> task;
+	private boolean closed;
+
+	public BuildLog(FilePath logFile) throws IOException, InterruptedException {
+		OutputStream stream = logFile.write();
+		this.out = new OutputStreamWriter(stream, "UTF-8");
+		this.task = flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public void info(String message) {
+		log("INFO ", message);
+	}
+
+	public void error(String message) {
+		log("ERROR", message);
+	}
+
+	private void log(String level, String message) {
+		String timestamp;
+		synchronized (df) {
+			timestamp = df.format(new Date());
+		}
+		if (!lines.offer(timestamp + " " + level + " - " + message)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes the remaining lines and closes the log file.
+	 */
+	public void close() {
+		task.cancel(false);
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			flush();
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+
+			}
+		}
+	}
+
+	private synchronized void flush() {
+		if (closed) {
+			return;
+		}
+
+		List<String> batch = new ArrayList<String>();
+		lines.drainTo(batch);
+		int count = dropped.getAndSet(0);
+		if (batch.isEmpty() && count == 0) {
+			return;
+		}
+
+		try {
+			for (String line : batch) {
+				out.write(line);
+				out.write("\n");
+			}
+			if (count > 0) {
+				out.write("(" + count + " log lines dropped)\n");
+			}
+			out.flush();
+		} catch (IOException e) {
+
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measurements of the HTTP requests made by one callable, in the JVM that made them.
+ *
+ * <p>
+ * {@link Utils} records into the sample bound to the current thread, if any, so the
+ * measurements can travel back through the channel together with the callable's result.
+ * A sample is only touched by the thread it is bound to.
+ */
+public class CallSample implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadLocal<CallSample> current = new ThreadLocal<CallSample>();
+
+	private final List<long[]> requests = new ArrayList<long[]>();
+	private long bytesOut;
+	private long bytesIn;
+	private long parseNanos;
+	private long elapsedNanos;
+
+	/**
+	 * Binds a new sample to the current thread.
+	 */
+	public static CallSample start() {
+		CallSample sample = new CallSample();
+		sample.elapsedNanos = System.nanoTime();
+		current.set(sample);
+		return sample;
+	}
+
+	/**
+	 * Unbinds the sample of the current thread and returns it.
+	 */
+	public static CallSample finish() {
+		CallSample sample = current.get();
+		current.remove();
+		if (sample != null) {
+			sample.elapsedNanos = System.nanoTime() - sample.elapsedNanos;
+		}
+		return sample;
+	}
+
+	/**
+	 * Returns the sample bound to the current thread, or null.
+	 */
+	public static CallSample get() {
+		return current.get();
+	}
+
+	/**
+	 * @param statusCode
+	 *      the response status, or 0 if the request failed without a response.
+	 */
+	public void request(int statusCode, long latencyNanos, long bytesOut) {
+		requests.add(new long[] { statusCode, latencyNanos });
+		this.bytesOut += bytesOut;
+	}
+
+	public void received(long bytes) {
+		bytesIn += bytes;
+	}
+
+	public void parsed(long nanos) {
+		parseNanos += nanos;
+	}
+
+	/**
+	 * Returns the status code and latency in nanoseconds of every request.
+	 */
+	public List<long[]> getRequests() {
+		return requests;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+}
@@ -0,0 +1,185 @@
+package com.swathub.jenkins.execution;
+
+import hudson.Extension;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.csrf.CrumbExclusion;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the task and job events SWAT Hub pushes for the jobs of running builds, at
+ * <tt>/swathub-callback/&lt;token&gt;</tt>.
+ *
+ * <p>
+ * Every runner that passes a callback URL to <tt>/run</tt> registers a random token,
+ * which is the last path segment of the URL. The endpoint needs no Jenkins login and no
+ * CSRF crumb, which SWAT Hub can't get, so a callback is only accepted with an
+ * <tt>X-SWATHub-Signature</tt> header holding <tt>sha256=</tt> and the hex HMAC-SHA256
+ * of the body, keyed with the API key of the user who started the job. An accepted
+ * callback wakes the runner, which then queries the job right away instead of waiting
+ * for the next poll.
+ */
+@Extension
+public class CallbackAction implements UnprotectedRootAction {
+	public static final String URL_NAME = "swathub-callback";
+	public static final String SIGNATURE_HEADER = "X-SWATHub-Signature";
+
+	private static final int MAX_BODY = 64 * 1024;
+	private static final SecureRandom random = new SecureRandom();
+	private static final ConcurrentHashMap<String, Registration> registrations = new ConcurrentHashMap<String, Registration>();
+
+	/**
+	 * A runner waiting for callbacks.
+	 */
+	public static class Registration {
+		private final String apiKey;
+		private final PollScheduler scheduler;
+		private volatile boolean received;
+
+		private Registration(String apiKey, PollScheduler scheduler) {
+			this.apiKey = apiKey;
+			this.scheduler = scheduler;
+		}
+
+		/**
+		 * Returns true once a valid callback arrived, which shows the server sends them.
+		 */
+		public boolean isReceived() {
+			return received;
+		}
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return URL_NAME;
+	}
+
+	/**
+	 * Returns a new random token for a callback URL.
+	 */
+	public static String newToken() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return toHex(bytes);
+	}
+
+	/**
+	 * Wakes <tt>scheduler</tt> on every valid callback for <tt>token</tt> until it is unregistered.
+	 * Registering a token again replaces the earlier registration.
+	 */
+	public static Registration register(String token, String apiKey, PollScheduler scheduler) {
+		Registration registration = new Registration(apiKey, scheduler);
+		registrations.put(token, registration);
+		return registration;
+	}
+
+	public static void unregister(String token) {
+		registrations.remove(token);
+	}
+
+	@RequirePOST
+	public HttpResponse doDynamic(StaplerRequest req) throws IOException {
+		String token = req.getRestOfPath();
+		token = token.startsWith("/") ? token.substring(1) : token;
+		Registration registration = registrations.get(token);
+		if (registration == null) {
+			return HttpResponses.error(404, "no build waits for this callback");
+		}
+
+		byte[] body = readBody(req.getInputStream());
+		if (body == null) {
+			return HttpResponses.error(413, "callback too large");
+		}
+		String signature = req.getHeader(SIGNATURE_HEADER);
+		if (signature == null || !MessageDigest.isEqual(signature.getBytes("UTF-8"), sign(registration.apiKey, body).getBytes("UTF-8"))) {
+			return HttpResponses.error(403, "invalid signature");
+		}
+		try {
+			JSONObject event = JSONObject.fromObject(new String(body, "UTF-8"));
+			if (!event.has("jobID")) {
+				return HttpResponses.error(400, "no jobID");
+			}
+		} catch (JSONException e) {
+			return HttpResponses.error(400, "invalid JSON");
+		}
+
+		registration.received = true;
+		registration.scheduler.wake();
+		return HttpResponses.ok();
+	}
+
+	/**
+	 * Returns the signature header value for <tt>body</tt>.
+	 */
+	public static String sign(String apiKey, byte[] body) throws IOException {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(apiKey.getBytes("UTF-8"), "HmacSHA256"));
+			return "sha256=" + toHex(mac.doFinal(body));
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Lets callbacks through the CSRF protection; the signature already proves where they come from.
+	 */
+	@Extension
+	public static class CrumbExclusionImpl extends CrumbExclusion {
+		@Override
+		public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain) throws IOException, ServletException {
+			String pathInfo = req.getPathInfo();
+			if (pathInfo != null && pathInfo.startsWith("/" + URL_NAME + "/")) {
+				chain.doFilter(req, resp);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			if (out.size() > MAX_BODY) {
+				return null;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder ret = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			ret.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return ret.toString();
+	}
+}
@@ -0,0 +1,119 @@
+package com.swathub.jenkins.execution;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker of one SWAT Hub host, shared by all API calls to it in this JVM.
+ *
+ * <p>
+ * After {@link ClientSettings#getBreakerThreshold()} consecutive failed calls (I/O errors,
+ * 5xx and 429 responses) the breaker opens, and calls fail right away with a
+ * {@link CircuitOpenException} instead of piling up on a host that is down. After
+ * {@link ClientSettings#getBreakerCooldown()} seconds one trial call is let through;
+ * if it succeeds the breaker closes again, otherwise it stays open for another cooldown.
+ * Every admitted call must report back with {@link #succeeded()} or {@link #failed()}; a call
+ * that ends without an answer, e.g. because it was interrupted, counts as failed.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private final String domain;
+	private State state = State.CLOSED;
+	private int threshold = ClientSettings.DEFAULT_BREAKER_THRESHOLD;
+	private long cooldown = ClientSettings.DEFAULT_BREAKER_COOLDOWN * 1000L;
+	private int consecutiveFailures;
+	private long openedAt;
+	private long calls;
+	private long failures;
+	private long retries;
+	private long rejected;
+	private long opened;
+
+	private CircuitBreaker(String domain) {
+		this.domain = domain;
+	}
+
+	/**
+	 * Returns the breaker of the host of <tt>uri</tt>, applying the limits of <tt>settings</tt>.
+	 */
+	public static CircuitBreaker get(URI uri, ClientSettings settings) {
+		String domain = getDomain(uri);
+		CircuitBreaker breaker = breakers.get(domain);
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker(domain);
+			breaker = breakers.putIfAbsent(domain, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		synchronized (breaker) {
+			breaker.threshold = settings.getBreakerThreshold();
+			breaker.cooldown = settings.getBreakerCooldown() * 1000L;
+		}
+		return breaker;
+	}
+
+	/**
+	 * Returns the breaker of the host of <tt>apiUrl</tt>, or null if no call was made to it.
+	 */
+	public static CircuitBreaker find(String apiUrl) {
+		return breakers.get(getDomain(URI.create(apiUrl)));
+	}
+
+	private static String getDomain(URI uri) {
+		return uri.getScheme() + "://" + uri.getHost() + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+	}
+
+	/**
+	 * Admits a call, or throws if the breaker is open.
+	 */
+	public synchronized void acquire() throws CircuitOpenException {
+		if (state == State.CLOSED) {
+			calls++;
+			return;
+		}
+
+		long retryIn = openedAt + cooldown - System.currentTimeMillis();
+		if (state == State.OPEN && retryIn <= 0) {
+			// the trial call; others are rejected until it reports back
+			state = State.HALF_OPEN;
+			calls++;
+			return;
+		}
+		rejected++;
+		throw new CircuitOpenException(domain, Math.max(retryIn, 0));
+	}
+
+	public synchronized void succeeded() {
+		consecutiveFailures = 0;
+		state = State.CLOSED;
+	}
+
+	public synchronized void failed() {
+		failures++;
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= threshold)) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+			opened++;
+		}
+	}
+
+	public synchronized void retried() {
+		retries++;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized String getSummary() {
+		return "SWAT Hub connection to " + domain + ": " + state + ", " + calls + " calls, " + failures + " failed, " +
+				retries + " retried, " + rejected + " rejected, breaker opened " + opened + " times";
+	}
+}
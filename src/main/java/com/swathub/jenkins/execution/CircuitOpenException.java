@@ -0,0 +1,14 @@
+package com.swathub.jenkins.execution;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making an API call while the circuit breaker of its SWAT Hub host is open.
+ */
+public class CircuitOpenException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String domain, long retryIn) {
+		super("SWAT Hub at " + domain + " is unavailable, calls are suspended for another " + (retryIn + 999) / 1000 + "s");
+	}
+}
@@ -0,0 +1,276 @@
+package com.swathub.jenkins.execution;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived, pooled HTTP clients shared by all SWAT Hub API calls in this JVM.
+ *
+ * <p>
+ * One client is kept per SWAT Hub domain, credentials and proxy settings, so
+ * consecutive polls of a build, and concurrent builds on the same agent,
+ * reuse open connections instead of doing a new TCP/TLS handshake per call.
+ *
+ * <p>
+ * SWAT Hub is never reached through a SOCKS proxy configured for the JVM with
+ * <tt>socksProxyHost</tt>: the clients open their sockets with {@link Proxy#NO_PROXY}
+ * and route through the configured HTTP proxy or the JVM's HTTP proxy selector only.
+ * This used to be done by clearing the system properties around every call, which
+ * raced with concurrent builds in the same JVM.
+ */
+public class ClientPool {
+	public static final int DEFAULT_MAX_PER_ROUTE = 5;
+
+	private static final long KEEP_ALIVE_MILLIS = 30000;
+	private static final long MAX_IDLE_SECONDS = 60;
+
+	private static final ConcurrentHashMap<String, Entry> clients = new ConcurrentHashMap<String, Entry>();
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread("SWAT Hub client pool shutdown") {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+	}
+
+	private static class Entry {
+		private final CloseableHttpClient client;
+		private final PoolingHttpClientConnectionManager connManager;
+
+		private Entry(CloseableHttpClient client, PoolingHttpClientConnectionManager connManager) {
+			this.client = client;
+			this.connManager = connManager;
+		}
+	}
+
+	/**
+	 * Returns the shared client for the domain of <tt>apiUrl</tt>, creating it on first use.
+	 * The returned client must not be closed by the caller.
+	 */
+	public static CloseableHttpClient getClient(String apiUrl, String accessKey, String secretKey,
+			final HashMap<String, String> proxy, ClientSettings settings) throws Exception {
+		int maxPerRoute = settings.getMaxPerRoute();
+		String key = getKey(apiUrl, accessKey, secretKey, proxy);
+
+		Entry entry = clients.get(key);
+		if (entry == null) {
+			Entry created = createEntry(accessKey, secretKey, proxy, maxPerRoute);
+			entry = clients.putIfAbsent(key, created);
+			if (entry == null) {
+				entry = created;
+			} else {
+				created.client.close();
+			}
+		}
+
+		if (entry.connManager.getDefaultMaxPerRoute() != maxPerRoute) {
+			entry.connManager.setDefaultMaxPerRoute(maxPerRoute);
+			entry.connManager.setMaxTotal(Math.max(maxPerRoute * 4, 20));
+		}
+
+		return entry.client;
+	}
+
+	/**
+	 * Closes all pooled clients and their connections.
+	 */
+	public static void shutdown() {
+		for (String key : new ArrayList<String>(clients.keySet())) {
+			Entry entry = clients.remove(key);
+			if (entry != null) {
+				try {
+					entry.client.close();
+				} catch (Exception e) {
+
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the pool key of a domain, user and proxy. The secret key and the proxy
+	 * credentials are only part of it as a SHA-256 hash, so they don't show up in logs or
+	 * heap dumps of the pool.
+	 */
+	static String getKey(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy) throws Exception {
+		URL url = new URL(apiUrl);
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update((secretKey + "|" + proxy.get("username") + "|" + proxy.get("password")).getBytes("UTF-8"));
+		StringBuilder hash = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hash.append(String.format("%02x", b & 0xff));
+		}
+		return url.getProtocol() + "://" + url.getHost() + ":" + url.getPort() + "|" + accessKey + "|" +
+				proxy.get("server") + ":" + proxy.get("port") + "|" + hash;
+	}
+
+	private static Entry createEntry(String accessKey, String secretKey, final HashMap<String, String> proxy, int maxPerRoute) {
+		Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", new DirectPlainSocketFactory())
+				.register("https", new DirectSSLSocketFactory())
+				.build();
+		PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager(registry);
+		connManager.setDefaultMaxPerRoute(maxPerRoute);
+		connManager.setMaxTotal(Math.max(maxPerRoute * 4, 20));
+
+		CredentialsProvider credsProvider = new BasicCredentialsProvider();
+		credsProvider.setCredentials(AuthScope.ANY,
+				new UsernamePasswordCredentials(accessKey, secretKey));
+		HttpClientBuilder clientBuilder = HttpClientBuilder.create();
+		clientBuilder.useSystemProperties();
+
+		if (!proxy.get("server").isEmpty()) {
+			credsProvider.setCredentials(
+					new AuthScope(proxy.get("server"), Integer.parseInt(proxy.get("port"))),
+					new UsernamePasswordCredentials(proxy.get("username"), proxy.get("password")));
+			clientBuilder.setRoutePlanner(new DefaultProxyRoutePlanner(new HttpHost(proxy.get("server"), Integer.parseInt(proxy.get("port")))));
+			clientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+		} else {
+			clientBuilder.setRoutePlanner(new SystemDefaultRoutePlanner(new HttpProxySelector(ProxySelector.getDefault())));
+		}
+
+		clientBuilder.setDefaultCredentialsProvider(credsProvider);
+		clientBuilder.setConnectionManager(connManager);
+		clientBuilder.setKeepAliveStrategy(new KeepAliveStrategy());
+		// content compression is on by default: requests send Accept-Encoding: gzip,deflate and
+		// compressed responses are decoded as they are read, so the JSON is never inflated in memory
+		clientBuilder.evictExpiredConnections();
+		clientBuilder.evictIdleConnections(MAX_IDLE_SECONDS, TimeUnit.SECONDS);
+
+		return new Entry(clientBuilder.build(), connManager);
+	}
+
+	static ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+		return new KeepAliveStrategy();
+	}
+
+	static ProxySelector getHttpProxySelector(ProxySelector selector) {
+		return new HttpProxySelector(selector);
+	}
+
+	/**
+	 * Honours the server's <tt>Keep-Alive: timeout=</tt> hint and otherwise keeps
+	 * connections for a bounded time, so pooled connections are not reused after
+	 * a load balancer has silently dropped them.
+	 */
+	private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+			while (it.hasNext()) {
+				HeaderElement he = it.nextElement();
+				if (he.getValue() != null && he.getName().equalsIgnoreCase("timeout")) {
+					try {
+						return Math.min(Long.parseLong(he.getValue()) * 1000, KEEP_ALIVE_MILLIS);
+					} catch (NumberFormatException nfe) {
+
+					}
+				}
+			}
+			return KEEP_ALIVE_MILLIS;
+		}
+	}
+
+	/**
+	 * Opens plain sockets that bypass the JVM's SOCKS proxy.
+	 */
+	private static class DirectPlainSocketFactory extends PlainConnectionSocketFactory {
+		@Override
+		public Socket createSocket(HttpContext context) throws IOException {
+			return new Socket(Proxy.NO_PROXY);
+		}
+	}
+
+	/**
+	 * Opens TLS connections over sockets that bypass the JVM's SOCKS proxy, with the
+	 * JVM's default SSL context and the protocols and cipher suites of the
+	 * <tt>https.protocols</tt> and <tt>https.cipherSuites</tt> system properties.
+	 */
+	private static class DirectSSLSocketFactory extends SSLConnectionSocketFactory {
+		private DirectSSLSocketFactory() {
+			super((SSLSocketFactory) SSLSocketFactory.getDefault(), split(System.getProperty("https.protocols")),
+					split(System.getProperty("https.cipherSuites")), SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+		}
+
+		@Override
+		public Socket createSocket(HttpContext context) throws IOException {
+			return new Socket(Proxy.NO_PROXY);
+		}
+
+		private static String[] split(String value) {
+			if (value == null || value.trim().isEmpty()) {
+				return null;
+			}
+			return value.trim().split(" *, *");
+		}
+	}
+
+	/**
+	 * Hands only the HTTP proxies of a proxy selector to the route planner. The planner
+	 * ignores SOCKS proxies anyway, this keeps them out of the picture explicitly.
+	 */
+	private static class HttpProxySelector extends ProxySelector {
+		private final ProxySelector selector;
+
+		private HttpProxySelector(ProxySelector selector) {
+			this.selector = selector;
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			List<Proxy> proxies = new ArrayList<Proxy>();
+			if (selector != null) {
+				for (Proxy proxy : selector.select(uri)) {
+					if (proxy.type() == Proxy.Type.HTTP) {
+						proxies.add(proxy);
+					}
+				}
+			}
+			if (proxies.isEmpty()) {
+				proxies.add(Proxy.NO_PROXY);
+			}
+			return proxies;
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress address, IOException e) {
+			if (selector != null) {
+				selector.connectFailed(uri, address, e);
+			}
+		}
+	}
+}
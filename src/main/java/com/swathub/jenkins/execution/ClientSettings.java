@@ -0,0 +1,118 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+
+/**
+ * Connection settings of the SWAT Hub API calls of a build: pool size, timeouts,
+ * retries, the circuit breaker limits and the rate limit. Sent along with the callables to the agent.
+ */
+public class ClientSettings implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10;
+	public static final int DEFAULT_READ_TIMEOUT = 60;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final int DEFAULT_MAX_FAILED_POLLS = 20;
+	public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+	public static final int DEFAULT_BREAKER_COOLDOWN = 30;
+
+	private final int maxPerRoute;
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final int maxRetries;
+	private final int maxFailedPolls;
+	private final int breakerThreshold;
+	private final int breakerCooldown;
+	private final boolean async;
+	private final double maxRequestRate;
+
+	/**
+	 * @param connectTimeout
+	 *      seconds to wait for a connection, from the pool or to the server.
+	 * @param readTimeout
+	 *      seconds to wait for data on an open connection.
+	 * @param maxRetries
+	 *      retries of a failed call, on top of the first attempt.
+	 * @param maxFailedPolls
+	 *      queries of a job in a row that may fail, after their retries, before the build fails.
+	 * @param breakerThreshold
+	 *      consecutive failed calls to a SWAT Hub host that open its circuit breaker.
+	 * @param breakerCooldown
+	 *      seconds an open circuit breaker rejects calls before letting a trial call through.
+	 * @param async
+	 *      true to make the calls through the non-blocking {@link AsyncClientPool}.
+	 * @param maxRequestRate
+	 *      API calls per second to a host from each JVM, see {@link RateLimiter}; 0 for no limit.
+	 */
+	public ClientSettings(int maxPerRoute, int connectTimeout, int readTimeout, int maxRetries, int maxFailedPolls,
+			int breakerThreshold, int breakerCooldown, boolean async, double maxRequestRate) {
+		this.maxPerRoute = maxPerRoute > 0 ? maxPerRoute : ClientPool.DEFAULT_MAX_PER_ROUTE;
+		this.connectTimeout = connectTimeout > 0 ? connectTimeout : DEFAULT_CONNECT_TIMEOUT;
+		this.readTimeout = readTimeout > 0 ? readTimeout : DEFAULT_READ_TIMEOUT;
+		this.maxRetries = maxRetries >= 0 ? maxRetries : DEFAULT_MAX_RETRIES;
+		this.maxFailedPolls = maxFailedPolls > 0 ? maxFailedPolls : DEFAULT_MAX_FAILED_POLLS;
+		this.breakerThreshold = breakerThreshold > 0 ? breakerThreshold : DEFAULT_BREAKER_THRESHOLD;
+		this.breakerCooldown = breakerCooldown > 0 ? breakerCooldown : DEFAULT_BREAKER_COOLDOWN;
+		this.async = async;
+		this.maxRequestRate = Math.max(maxRequestRate, 0);
+	}
+
+	public static ClientSettings defaults() {
+		return new ClientSettings(ClientPool.DEFAULT_MAX_PER_ROUTE, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT,
+				DEFAULT_MAX_RETRIES, DEFAULT_MAX_FAILED_POLLS, DEFAULT_BREAKER_THRESHOLD, DEFAULT_BREAKER_COOLDOWN, false, 0);
+	}
+
+	/**
+	 * Returns these settings with a read timeout of at least <tt>seconds</tt>, e.g. for a
+	 * long-poll query the server holds for a while.
+	 */
+	public ClientSettings withMinReadTimeout(int seconds) {
+		if (seconds <= readTimeout) {
+			return this;
+		}
+		return new ClientSettings(maxPerRoute, connectTimeout, seconds, maxRetries, maxFailedPolls, breakerThreshold, breakerCooldown, async, maxRequestRate);
+	}
+
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public int getMaxFailedPolls() {
+		return maxFailedPolls;
+	}
+
+	public int getBreakerThreshold() {
+		return breakerThreshold;
+	}
+
+	public int getBreakerCooldown() {
+		return breakerCooldown;
+	}
+
+	public boolean isAsync() {
+		return async;
+	}
+
+	public double getMaxRequestRate() {
+		return maxRequestRate;
+	}
+
+	@Override
+	public String toString() {
+		return "maxPerRoute=" + maxPerRoute + ", connectTimeout=" + connectTimeout + "s, readTimeout=" + readTimeout +
+				"s, maxRetries=" + maxRetries + ", maxFailedPolls=" + maxFailedPolls + ", breakerThreshold=" + breakerThreshold + ", breakerCooldown=" + breakerCooldown + "s" + (async ? ", async" : "") +
+				(maxRequestRate > 0 ? ", maxRequestRate=" + maxRequestRate + "/s" : "");
+	}
+}
@@ -0,0 +1,331 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Duration statistics of the cases of a test set, kept across builds.
+ *
+ * <p>
+ * Cases are keyed by a 64-bit hash of their description, since task IDs change from run
+ * to run, and the statistics are held in parallel arrays behind a {@link LongIndex}, so a
+ * lookup is a single hash probe. The file is append-only: each finished case adds a
+ * fixed-size record, and loading folds the records into count, mean, variance and an
+ * exponentially weighted mean. When the file holds much more records than keys, it is
+ * rewritten with one record per key, dropping the keys not seen for the longest time
+ * beyond {@link #MAX_KEYS}, so it stays bounded however long the history grows.
+ *
+ * <p>
+ * The durations of whole jobs are kept under {@link #UNIT_PREFIX} plus the job label.
+ */
+public class DurationHistory {
+	public static final String UNIT_PREFIX = "unit:";
+	public static final int MAX_KEYS = 20000;
+
+	// key, count, mean, m2, ewma, updated
+	private static final int RECORD_SIZE = 8 + 4 + 8 + 8 + 8 + 8;
+	private static final double EWMA_WEIGHT = 0.3;
+
+	private static final Logger LOGGER = Logger.getLogger(DurationHistory.class.getName());
+
+	private static final ConcurrentHashMap<String, DurationHistory> histories = new ConcurrentHashMap<String, DurationHistory>();
+
+	private final File file;
+	private LongIndex index;
+	private int[] counts;
+	private double[] means;
+	private double[] m2s;
+	private double[] ewmas;
+	private long[] updated;
+	private long records;
+
+	private DurationHistory(File file) {
+		this.file = file;
+		reset(16);
+	}
+
+	/**
+	 * Returns the history stored in <tt>file</tt>, loading it on first use.
+	 */
+	public static DurationHistory get(File file) {
+		String key = file.getAbsolutePath();
+		DurationHistory history = histories.get(key);
+		if (history != null) {
+			return history;
+		}
+		synchronized (histories) {
+			// only published once loaded, so no caller sees an empty history
+			history = histories.get(key);
+			if (history == null) {
+				history = new DurationHistory(file);
+				history.load();
+				histories.put(key, history);
+			}
+		}
+		return history;
+	}
+
+	/**
+	 * Returns the 64-bit FNV-1a hash of <tt>name</tt>.
+	 */
+	public static long hash(String name) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			h = (h ^ (c & 0xff)) * 0x100000001b3L;
+			h = (h ^ (c >>> 8)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * Returns the expected duration in seconds, or -1 if there is no history for <tt>name</tt>.
+	 */
+	public synchronized double getExpected(String name) {
+		int slot = index.get(hash(name));
+		return slot != -1 ? ewmas[slot] : -1;
+	}
+
+	/**
+	 * Returns the standard deviation of the durations in seconds, or -1 if there is no history.
+	 */
+	public synchronized double getStdDev(String name) {
+		int slot = index.get(hash(name));
+		if (slot == -1) {
+			return -1;
+		}
+		return counts[slot] > 1 ? Math.sqrt(m2s[slot] / (counts[slot] - 1)) : 0;
+	}
+
+	/**
+	 * Appends one duration per name, in seconds.
+	 */
+	public synchronized void record(Map<String, Double> durations) throws IOException {
+		if (durations.isEmpty()) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		file.getParentFile().mkdirs();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		try {
+			for (Map.Entry<String, Double> entry : durations.entrySet()) {
+				long key = hash(entry.getKey());
+				double value = entry.getValue();
+				writeRecord(out, key, 1, value, 0, value, now);
+				merge(key, 1, value, 0, value, now);
+				records++;
+			}
+		} finally {
+			out.close();
+		}
+
+		if (records > Math.max(index.size() * 2L, index.size() + 1000L)) {
+			compact();
+		}
+	}
+
+	/**
+	 * Records the durations of the finished cases of a report written by {@link ResultWriter},
+	 * and the total duration of each of its suites named after a job label.
+	 */
+	public void recordReport(FilePath report) throws IOException, InterruptedException {
+		HashMap<String, Double> durations = new HashMap<String, Double>();
+		InputStream in = report.read();
+		try {
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in, "utf-8");
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String name = reader.getAttributeValue(null, "name");
+				String time = reader.getAttributeValue(null, "time");
+				if (name == null || time == null) {
+					continue;
+				}
+				if (reader.getLocalName().equals("testcase") && "finished".equals(reader.getAttributeValue(null, "status"))) {
+					durations.put(name, Double.parseDouble(time));
+				} else if (reader.getLocalName().equals("testsuite") && name.endsWith("]") && name.lastIndexOf(" [") >= 0) {
+					durations.put(UNIT_PREFIX + name.substring(name.lastIndexOf(" [") + 2, name.length() - 1), Double.parseDouble(time));
+				}
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			in.close();
+		}
+		record(durations);
+	}
+
+	/**
+	 * Returns the expected durations of all keys, to be sent along with a runner.
+	 */
+	public synchronized Estimates getEstimates() {
+		return new Estimates(index.copy(), Arrays.copyOf(ewmas, index.size()));
+	}
+
+	private void merge(long key, int count, double mean, double m2, double ewma, long time) {
+		int slot = index.add(key);
+		if (slot >= counts.length) {
+			int length = counts.length * 2;
+			counts = Arrays.copyOf(counts, length);
+			means = Arrays.copyOf(means, length);
+			m2s = Arrays.copyOf(m2s, length);
+			ewmas = Arrays.copyOf(ewmas, length);
+			updated = Arrays.copyOf(updated, length);
+		}
+
+		int n1 = counts[slot];
+		int n = n1 + count;
+		double delta = mean - means[slot];
+		means[slot] += delta * count / n;
+		m2s[slot] += m2 + delta * delta * n1 * count / n;
+		if (n1 == 0 || count > 1) {
+			ewmas[slot] = ewma;
+		} else {
+			ewmas[slot] += EWMA_WEIGHT * (ewma - ewmas[slot]);
+		}
+		counts[slot] = n;
+		updated[slot] = Math.max(updated[slot], time);
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					long key = in.readLong();
+					int count = in.readInt();
+					double mean = in.readDouble();
+					double m2 = in.readDouble();
+					double ewma = in.readDouble();
+					long time = in.readLong();
+					merge(key, count, mean, m2, ewma, time);
+					records++;
+				}
+			} catch (EOFException e) {
+				// end of history, a partly written last record is ignored
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "couldn't read the duration history " + file + ", using the " + index.size() + " cases read so far", e);
+		}
+	}
+
+	/**
+	 * Rewrites the file with one record per key, keeping the {@link #MAX_KEYS} most recently updated.
+	 */
+	private void compact() throws IOException {
+		int size = index.size();
+		long cutoff = Long.MIN_VALUE;
+		if (size > MAX_KEYS) {
+			long[] times = Arrays.copyOf(updated, size);
+			Arrays.sort(times);
+			cutoff = times[size - MAX_KEYS];
+		}
+
+		// the keys are only held by the index, so the live ones are read back from the old file
+		File tmp = new File(file.getPath() + ".tmp");
+		LongIndex written = new LongIndex(Math.min(size, MAX_KEYS));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			byte[] skip = new byte[RECORD_SIZE - 8];
+			while (true) {
+				long key;
+				try {
+					key = in.readLong();
+					in.readFully(skip);
+				} catch (EOFException e) {
+					break;
+				}
+				int slot = index.get(key);
+				if (slot == -1 || updated[slot] < cutoff || written.get(key) != -1) {
+					continue;
+				}
+				written.add(key);
+				writeRecord(out, key, counts[slot], means[slot], m2s[slot], ewmas[slot], updated[slot]);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		if (!file.delete() || !tmp.renameTo(file)) {
+			throw new IOException("Couldn't replace " + file);
+		}
+
+		// reloading drops the evicted keys from the index as well
+		reset(written.size());
+		load();
+	}
+
+	private void reset(int size) {
+		size = Math.max(size, 16);
+		index = new LongIndex(size);
+		counts = new int[size];
+		means = new double[size];
+		m2s = new double[size];
+		ewmas = new double[size];
+		updated = new long[size];
+		records = 0;
+	}
+
+	private static void writeRecord(DataOutputStream out, long key, int count, double mean, double m2, double ewma, long time) throws IOException {
+		out.writeLong(key);
+		out.writeInt(count);
+		out.writeDouble(mean);
+		out.writeDouble(m2);
+		out.writeDouble(ewma);
+		out.writeLong(time);
+	}
+
+	/**
+	 * The expected durations of a history at one point in time, looked up by name.
+	 */
+	public static class Estimates implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final LongIndex index;
+		private final double[] values;
+
+		private Estimates(LongIndex index, double[] values) {
+			this.index = index;
+			this.values = values;
+		}
+
+		/**
+		 * Returns the expected duration in seconds, or -1 if unknown.
+		 */
+		public double get(String name) {
+			int slot = index.get(hash(name));
+			return slot != -1 && slot < values.length ? values[slot] : -1;
+		}
+	}
+}
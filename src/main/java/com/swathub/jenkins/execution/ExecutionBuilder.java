@@ -1,32 +1,41 @@
 package com.swathub.jenkins.execution;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.remoting.Callable;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
-import org.apache.log4j.*;
 import org.jenkinsci.remoting.RoleChecker;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URLEncoder;
-import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Sample {@link Builder}.
@@ -45,7 +54,7 @@ import java.util.HashMap;
  *
  * @author Guo Shenyu
  */
-public class ExecutionBuilder extends Builder {
+public class ExecutionBuilder extends Builder implements SimpleBuildStep {
 	private final String domain;
 	private final String ownerName;
 	private final String workspace;
@@ -61,6 +70,11 @@ public class ExecutionBuilder extends Builder {
 	private final String tags;
 	private final String execSettings;
 	private final boolean isAddIssue;
+	private boolean runOnAgent;
+	private String shardNodes = "";
+	private int failFastCount;
+	private int failFastPercent;
+	private String failFastTags = "";
 
 	// Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
 	@DataBoundConstructor
@@ -159,35 +173,149 @@ public class ExecutionBuilder extends Builder {
 		return isAddIssue;
 	}
 
-	private static class PostCallable implements Callable<JSONObject, Exception> {
+	public boolean getRunOnAgent() {
+		return runOnAgent;
+	}
+
+	/**
+	 * Sets whether the whole execution loop runs on the agent instead of the master.
+	 */
+	@DataBoundSetter
+	public void setRunOnAgent(boolean runOnAgent) {
+		this.runOnAgent = runOnAgent;
+	}
+
+	public String getShardNodes() {
+		return shardNodes;
+	}
+
+	/**
+	 * Sets the comma-separated execution nodes to spread the test sets or tag groups over.
+	 */
+	@DataBoundSetter
+	public void setShardNodes(String shardNodes) {
+		this.shardNodes = shardNodes != null ? shardNodes : "";
+	}
+
+	public int getFailFastCount() {
+		return failFastCount;
+	}
+
+	/**
+	 * Sets the number of failed tasks that stops the jobs early, 0 to not stop on a count.
+	 */
+	@DataBoundSetter
+	public void setFailFastCount(int failFastCount) {
+		this.failFastCount = failFastCount;
+	}
+
+	public int getFailFastPercent() {
+		return failFastPercent;
+	}
+
+	/**
+	 * Sets the percentage of failed tasks among the completed ones that stops the jobs early,
+	 * 0 to not stop on a percentage.
+	 */
+	@DataBoundSetter
+	public void setFailFastPercent(int failFastPercent) {
+		this.failFastPercent = failFastPercent;
+	}
+
+	public String getFailFastTags() {
+		return failFastTags;
+	}
+
+	/**
+	 * Sets the comma-separated critical tags; a failed task with one of them stops the jobs early.
+	 */
+	@DataBoundSetter
+	public void setFailFastTags(String failFastTags) {
+		this.failFastTags = failFastTags != null ? failFastTags : "";
+	}
+
+	static class PostCallable implements Callable<JSONObject, Exception> {
 		private static final long serialVersionUID = 1L;
 
 		private String apiUrl;
 		private String accessKey;
 		private String secretKey;
 		private HashMap<String, String> proxy;
+		private ClientSettings settings;
+		private String body;
+
+		public PostCallable(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings) {
+			this(apiUrl, accessKey, secretKey, proxy, settings, "");
+		}
 
-		public PostCallable(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy) {
+		public PostCallable(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings, String body) {
 			this.apiUrl = apiUrl;
 			this.accessKey = accessKey;
 			this.secretKey = secretKey;
 			this.proxy = proxy;
+			this.settings = settings;
+			this.body = body;
 		}
 
 		public JSONObject call() throws Exception {
-			String socksProxyHost = System.getProperty("socksProxyHost");
-			String socksProxyPort = System.getProperty("socksProxyPort");
-			if (socksProxyHost != null) {
-				System.setProperty("socksProxyHost", "");
-				System.setProperty("socksProxyPort", "");
-			}
-
 			Utils utils = new Utils();
-			JSONObject result = utils.apiPost(apiUrl, accessKey, secretKey, "", proxy);
+			return utils.apiPost(apiUrl, accessKey, secretKey, body, proxy, settings);
+		}
+
+		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
+
+		}
+	}
+
+	static class GetCallable implements Callable<JobStatus, Exception> {
+		private static final long serialVersionUID = 1L;
+
+		private String apiUrl;
+		private String accessKey;
+		private String secretKey;
+		private HashMap<String, String> proxy;
+		private ClientSettings settings;
+		private QueryMode queryMode;
+		private String since;
+		private int waitSeconds;
+		private String etag;
+
+		/**
+		 * @param etag
+		 *      the <tt>ETag</tt> of the previous answer to the same query, or null.
+		 */
+		public GetCallable(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings,
+				QueryMode queryMode, String since, int waitSeconds, String etag) {
+			this.apiUrl = apiUrl;
+			this.accessKey = accessKey;
+			this.secretKey = secretKey;
+			this.proxy = proxy;
+			this.settings = settings;
+			this.queryMode = queryMode;
+			this.since = since;
+			this.waitSeconds = waitSeconds;
+			this.etag = etag;
+		}
 
-			if (socksProxyHost != null) {
-				System.setProperty("socksProxyHost", socksProxyHost);
-				System.setProperty("socksProxyPort", socksProxyPort);
+		public JobStatus call() throws Exception {
+			Utils utils = new Utils();
+			JobStatus result;
+			if (queryMode == QueryMode.FULL || since == null) {
+				result = utils.apiQuery(apiUrl, accessKey, secretKey, proxy, settings, etag);
+			} else {
+				// the server holds a long-poll query for up to waitSeconds before it answers
+				ClientSettings querySettings = queryMode == QueryMode.LONG_POLL ? settings.withMinReadTimeout(waitSeconds + 10) : settings;
+				String queryUrl = apiUrl + "?since=" + URLEncoder.encode(since, "UTF-8") +
+						(queryMode == QueryMode.LONG_POLL ? "&wait=" + waitSeconds : "");
+				try {
+					result = utils.apiQuery(queryUrl, accessKey, secretKey, proxy, querySettings, etag);
+				} catch (ApiException e) {
+					if (e.getStatusCode() != 400 && e.getStatusCode() != 404 && e.getStatusCode() != 501) {
+						throw e;
+					}
+					// the server doesn't know the delta parameters, its full response has no revision
+					result = utils.apiQuery(apiUrl, accessKey, secretKey, proxy, settings);
+				}
 			}
 
 			return result;
@@ -198,38 +326,53 @@ public class ExecutionBuilder extends Builder {
 		}
 	}
 
-	private static class GetCallable implements Callable<JSONObject, Exception> {
+
+	/**
+	 * Queries several jobs in one <tt>/jobs/query</tt> call, see {@link Utils#apiQueryBatch}.
+	 */
+	static class BatchQueryCallable implements Callable<Map<String, JobStatus>, Exception> {
 		private static final long serialVersionUID = 1L;
 
 		private String apiUrl;
 		private String accessKey;
 		private String secretKey;
 		private HashMap<String, String> proxy;
+		private ClientSettings settings;
 
-		public GetCallable(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy) {
+		public BatchQueryCallable(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings) {
 			this.apiUrl = apiUrl;
 			this.accessKey = accessKey;
 			this.secretKey = secretKey;
 			this.proxy = proxy;
+			this.settings = settings;
 		}
 
-		public JSONObject call() throws Exception {
-			String socksProxyHost = System.getProperty("socksProxyHost");
-			String socksProxyPort = System.getProperty("socksProxyPort");
-			if (socksProxyHost != null) {
-				System.setProperty("socksProxyHost", "");
-				System.setProperty("socksProxyPort", "");
-			}
-
+		public Map<String, JobStatus> call() throws Exception {
 			Utils utils = new Utils();
-			JSONObject result = utils.apiGet(apiUrl, accessKey, secretKey, proxy);;
+			return utils.apiQueryBatch(apiUrl, accessKey, secretKey, proxy, settings);
+		}
 
-			if (socksProxyHost != null) {
-				System.setProperty("socksProxyHost", socksProxyHost);
-				System.setProperty("socksProxyPort", socksProxyPort);
-			}
+		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
 
-			return result;
+		}
+	}
+
+	/**
+	 * Returns the circuit breaker state and counters of a SWAT Hub host in the JVM making the
+	 * API calls, or null if no call was made to it. Used by {@link ExecutionRunner} at the end of a run.
+	 */
+	static class ConnectionStatusCallable implements Callable<String, Exception> {
+		private static final long serialVersionUID = 1L;
+
+		private String apiUrl;
+
+		public ConnectionStatusCallable(String apiUrl) {
+			this.apiUrl = apiUrl;
+		}
+
+		public String call() throws Exception {
+			CircuitBreaker breaker = CircuitBreaker.find(apiUrl);
+			return breaker != null ? breaker.getSummary() : null;
 		}
 
 		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
@@ -237,110 +380,293 @@ public class ExecutionBuilder extends Builder {
 		}
 	}
 
+	/**
+	 * Runs the whole execution loop on the agent, so API calls don't cross the channel
+	 * and only console lines are sent back through the listener. Returns the metrics of the runner.
+	 */
+	private static class RunnerCallable implements Callable<Metrics.Snapshot, Exception> {
+		private static final long serialVersionUID = 1L;
 
-	@Override
-	public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
-		// This is where you 'build' the project.
-		// Since this is a dummy, we just say 'hello world' and call that a build.
-
-		boolean result = true;
-		Logger logger = LogManager.getLogger("logger");
+		private ExecutionRunner runner;
+		// sent along, as the runner doesn't serialize them
+		private String apiKey;
+		private HashMap<String, String> proxy;
+		private TaskListener listener;
 
-		PatternLayout layout = new PatternLayout("%d %-5p - %m%n");
-		StringWriter logsw = new StringWriter();
-		logger.setLevel(Level.INFO);
-		logger.addAppender(new WriterAppender(layout, logsw));
+		public RunnerCallable(ExecutionRunner runner, TaskListener listener) {
+			this.runner = runner;
+			this.apiKey = runner.getApiKey();
+			this.proxy = runner.getProxy();
+			this.listener = listener;
+		}
 
-		Utils utils = new Utils();
-		String l_domain = domain.isEmpty()?getDescriptor().getDomain():domain;
-		String l_ownerName = ownerName.isEmpty()?getDescriptor().getOwnerName():ownerName;
-		String l_workspace = workspace.isEmpty()?getDescriptor().getWorkspace():workspace;
-		String l_userName = userName.isEmpty()?getDescriptor().getUserName():userName;
-		String l_apiKey = apiKey.isEmpty()?getDescriptor().getApiKey():apiKey;
+		public Metrics.Snapshot call() throws Exception {
+			runner.setCredentials(apiKey, proxy);
+			runner.run(null, listener);
+			return runner.getMetrics().snapshot();
+		}
 
-		HashMap<String, String> proxy = new HashMap<String, String>();
-		proxy.put("server", getDescriptor().getProxyServer());
-		proxy.put("port", getDescriptor().getProxyPort());
-		proxy.put("username", getDescriptor().getProxyUsername());
-		proxy.put("password", getDescriptor().getProxyPassword());
+		public void checkRoles(RoleChecker roleChecker) throws SecurityException {
 
-		logger.info("userName:" + l_userName);
-		logger.info("apiKey:" + l_apiKey);
-		logger.info("proxy:" + proxy.toString());
+		}
+	}
 
-		JSONObject execResult;
-		ArrayList<String> completedList = new ArrayList<String>();
+	/**
+	 * Returns one job per test set ID, or per tag group when a single test set is run
+	 * with several <tt>;</tt>-separated tag groups.
+	 *
+	 * <p>
+	 * With several shard nodes, the jobs are spread over them by {@link ShardPlanner},
+	 * weighted with their expected durations from the {@link DurationHistory}, or else
+	 * with their durations in the previous report at <tt>resultFile</tt>.
+	 */
+	private List<ExecutionJob> createJobs(QueryMode queryMode, FilePath resultFile, DurationHistory.Estimates estimates,
+			BuildLog logger) throws Exception {
+		List<String> setIDs = split(testSetID, ",");
+		List<String> tagGroups = split(tags, ";");
+
+		// label, test set ID and tags of each job
+		List<String[]> units = new ArrayList<String[]>();
+		if (setIDs.size() > 1) {
+			for (String setID : setIDs) {
+				units.add(new String[] { setID, setID, tags });
+			}
+		} else if (tagGroups.size() > 1) {
+			for (String tagGroup : tagGroups) {
+				units.add(new String[] { tagGroup, testSetID, tagGroup });
+			}
+		} else {
+			units.add(new String[] { testSetID, testSetID, tags });
+		}
 
-		try {
-			String params = testSetID.isEmpty()?"":("setID=" + testSetID + "&");
-			params += ("nodeName=" + URLEncoder.encode(nodeName, "UTF-8") + "&nodeType=" + nodeType + "&platform=" + URLEncoder.encode(platformCode, "UTF-8") + 
-				"&isSequential=" + (isSequential?"true":"false") + "&testServer=" + (testServer!=null?testServer:"") + "&apiServer=" + (apiServer!=null?apiServer:"") + 
-				"&tags=" + (tags!=null?URLEncoder.encode(tags, "UTF-8"):"") + "&execSettings=" + (execSettings!=null?URLEncoder.encode(execSettings, "UTF-8"):""));
-			JSONObject jobResult = launcher.getChannel().call(new PostCallable(l_domain + "/api/" + l_ownerName + "/" + l_workspace + "/run?" + params, l_userName, l_apiKey, proxy));
-
-			while (true) {
-				logger.info("get:" + l_domain + "/api/" + l_ownerName + "/" + l_workspace + "/jobs/" + jobResult.getString("jobID") +"/query");
-				execResult = launcher.getChannel().call(new GetCallable(l_domain + "/api/" + l_ownerName + "/" + l_workspace + "/jobs/" + jobResult.getString("jobID") +"/query", l_userName, l_apiKey, proxy));
-				JSONArray tasks = execResult.getJSONArray("tasks");
-				for (int i = 0; i < tasks.size(); i++) {
-					JSONObject task = tasks.getJSONObject(i);
-					String status = task.getString("status");
-					if (status.equals("stopped") || status.equals("finished") || status.equals("failed")) {
-
-						String taskID = task.getString("taskID");
-						if (!completedList.contains(taskID)) {
-							completedList.add(taskID);
-							SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-							Timestamp now = new Timestamp(System.currentTimeMillis());
-							String timestamp = df.format(now);
-							String message = timestamp + " " + task.getString("description") +
-									" :   " + task.getString("status") + " (" + completedList.size() + "/" +
-									tasks.size() + ")";
-							listener.getLogger().println(message);
-
-							if (status.equals("failed") && task.has("error")) {
-								String issueParams = ("content=" + URLEncoder.encode(task.getString("error"), "UTF-8")) + "&type=issue";
-								launcher.getChannel().call(
-									new PostCallable(
-										l_domain + "/api/" + l_ownerName + "/" + l_workspace + "/results/" + 
-										task.getString("resultID") + "/comments?" + issueParams, l_userName, l_apiKey, proxy
-									)
-								);
-							}
-						}
-					}
+		Map<String, String> l_nodes = new HashMap<String, String>();
+		List<String> shards = split(shardNodes, ",");
+		if (shards.size() > 1 && units.size() > 1) {
+			List<String> labels = new ArrayList<String>();
+			for (String[] unit : units) {
+				labels.add(unit[0]);
+			}
+			Map<String, Double> weights = ShardPlanner.readDurations(resultFile);
+			for (String label : labels) {
+				double expected = estimates.get(DurationHistory.UNIT_PREFIX + label);
+				if (expected > 0) {
+					weights.put(label, expected);
 				}
+			}
+			l_nodes = ShardPlanner.assign(labels, weights, shards);
+			if (logger != null) {
+				logger.info("shards:" + l_nodes.toString());
+			}
+		} else if (shards.size() > 1 && logger != null) {
+			logger.info("a single test set without tag groups can't be sharded, running it on " + nodeName);
+		}
 
-				if (execResult.getString("status").equals("stopped") || execResult.getString("status").equals("finished")) {
-					break;
-				}
+		List<ExecutionJob> jobs = new ArrayList<ExecutionJob>();
+		for (String[] unit : units) {
+			String node = l_nodes.containsKey(unit[0]) ? l_nodes.get(unit[0]) : nodeName;
+			jobs.add(new ExecutionJob(unit[0], getRunParams(unit[1], unit[2], node), queryMode));
+		}
+		return jobs;
+	}
+
+	private String getRunParams(String setID, String tags, String nodeName) throws Exception {
+		String params = setID.isEmpty()?"":("setID=" + setID.trim() + "&");
+		params += ("nodeName=" + URLEncoder.encode(nodeName, "UTF-8") + "&nodeType=" + nodeType + "&platform=" + URLEncoder.encode(platformCode, "UTF-8") + 
+			"&isSequential=" + (isSequential?"true":"false") + "&testServer=" + (testServer!=null?testServer:"") + "&apiServer=" + (apiServer!=null?apiServer:"") + 
+			"&tags=" + (tags!=null?URLEncoder.encode(tags, "UTF-8"):"") + "&execSettings=" + (execSettings!=null?URLEncoder.encode(execSettings, "UTF-8"):""));
+		return params;
+	}
 
-				Thread.sleep(15000);
+	private static List<String> split(String value, String separator) {
+		List<String> ret = new ArrayList<String>();
+		if (value != null) {
+			for (String item : value.split(separator)) {
+				if (!item.trim().isEmpty()) {
+					ret.add(item.trim());
+				}
 			}
+		}
+		return ret;
+	}
+
+	@Override
+	public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
+		return execute(build, build.getWorkspace(), launcher, listener);
+	}
+
+	public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+		if (!execute(run, workspace, launcher, listener)) {
+			throw new AbortException("SWAT Hub execution failed");
+		}
+	}
+
+	private boolean execute(Run<?, ?> run, FilePath buildWorkspace, Launcher launcher, TaskListener listener) {
+		// This is where you 'build' the project.
+
+		boolean result = true;
+		BuildLog logger = null;
+		ExecutionRunner runner = null;
+		Metrics.Snapshot metrics = null;
+		FilePath resultFile = new FilePath(buildWorkspace, "swat_result.xml");
 
-			utils.createXmlFile(new FilePath(build.getWorkspace(), "swat_result.xml"), execResult);
+		try {
+			logger = new BuildLog(new FilePath(buildWorkspace, "swathub.log"));
+
+			runner = createRunner(resultFile, logger);
+			if (runOnAgent) {
+				logger.info("running the execution loop on the agent");
+				try {
+					runner.admit(listener);
+					metrics = launcher.getChannel().call(new RunnerCallable(runner, listener));
+				} finally {
+					runner.releaseAdmission();
+				}
+			} else {
+				runner.setLogger(logger);
+				runner.run(launcher.getChannel(), listener);
+			}
+			runner.recordHistory(listener);
 		} catch (Exception e) {
 			listener.getLogger().println(e.getMessage());
 
-			StringWriter sw = new StringWriter();
-			PrintWriter spw = new PrintWriter(sw);
-			e.printStackTrace(spw);
-			logger.error(sw.toString());
-			spw.close();
+			if (logger != null) {
+				StringWriter sw = new StringWriter();
+				PrintWriter spw = new PrintWriter(sw);
+				e.printStackTrace(spw);
+				logger.error(sw.toString());
+				spw.close();
+			}
 			result = false;
+		} finally {
+			if (metrics == null && runner != null && !runOnAgent) {
+				metrics = runner.getMetrics().snapshot();
+			}
+			if (metrics != null) {
+				addMetrics(run, metrics, logger);
+			}
+			if (runner != null) {
+				archiveResults(run, resultFile, listener);
+			}
+			if (logger != null) {
+				logger.close();
+			}
+		}
+
+		// This also shows how you can consult the global configuration of the builder
+		return result;
+	}
+
+	/**
+	 * Adds the metrics of a build step to the {@link MetricsAction} of the build and to the global metrics.
+	 */
+	static void addMetrics(Run<?, ?> run, Metrics.Snapshot metrics, BuildLog logger) {
+		synchronized (run) {
+			MetricsAction action = run.getAction(MetricsAction.class);
+			if (action != null) {
+				action.add(metrics);
+			} else {
+				run.addAction(new MetricsAction(metrics));
+			}
 		}
+		Metrics.global().add(metrics);
+		if (logger != null) {
+			logger.info("metrics:\n" + metrics.toText());
+		}
+	}
 
+	/**
+	 * Appends the report of a build step to the {@link ResultArchive} of its job, and drops
+	 * the records of the builds the job no longer keeps or shows. Nothing is archived if the
+	 * step wrote no report, and a failure is only printed.
+	 */
+	static void archiveResults(Run<?, ?> run, FilePath resultFile, TaskListener listener) {
 		try {
-			FilePath logFile = new FilePath(build.getWorkspace(), "swathub.log");
-			PrintWriter fpw = new PrintWriter(logFile.write());
-			fpw.println(logsw.toString());
-			logsw.close();
-			fpw.close();
-		} catch (Exception fe) {
+			if (resultFile.exists()) {
+				ResultArchive archive = ResultArchiveAction.getArchive(run.getParent());
+				archive.append(run.getNumber(), resultFile);
+				Run<?, ?> first = run.getParent().getFirstBuild();
+				archive.prune(first != null ? first.getNumber() : run.getNumber(), ResultArchiveAction.CASE_BUILDS);
+			}
+		} catch (IOException e) {
+			listener.getLogger().println("couldn't archive the results of this run: " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Resolves the step and global settings into a runner for the jobs of this step.
+	 *
+	 * @param logger
+	 *      receives the resolved connection settings, may be null.
+	 */
+	ExecutionRunner createRunner(FilePath resultFile, BuildLog logger) throws Exception {
+		String l_domain = domain.isEmpty()?getDescriptor().getDomain():domain;
+		String l_ownerName = ownerName.isEmpty()?getDescriptor().getOwnerName():ownerName;
+		String l_workspace = workspace.isEmpty()?getDescriptor().getWorkspace():workspace;
+		String l_userName = userName.isEmpty()?getDescriptor().getUserName():userName;
+		String l_apiKey = apiKey.isEmpty()?getDescriptor().getApiKey():apiKey;
 
+		HashMap<String, String> proxy = getDescriptor().getProxy();
+
+		if (logger != null) {
+			logger.info("userName:" + l_userName);
+			logger.info("apiKey:" + l_apiKey);
+			logger.info("proxy:" + proxy.toString());
 		}
-		// This also shows how you can consult the global configuration of the builder
-		return result;
+
+		ClientSettings settings = getDescriptor().getClientSettings();
+		if (logger != null) {
+			logger.info("connection:" + settings.toString());
+		}
+		QueryMode queryMode = getDescriptor().getQueryMode();
+		PollScheduler scheduler = new PollScheduler(getDescriptor().getPollMinInterval(),
+				getDescriptor().getPollMaxInterval(), getDescriptor().getPollBackoffFactor());
+
+		String apiBase = l_domain + "/api/" + l_ownerName + "/" + l_workspace;
+
+		// one history per test set, kept on the master
+		File historyFile = new File(Jenkins.getInstance().getRootDir(),
+				"swathub-history/" + Long.toHexString(DurationHistory.hash(apiBase + "|" + testSetID)) + ".bin");
+		DurationHistory.Estimates estimates = DurationHistory.get(historyFile).getEstimates();
+
+		List<ExecutionJob> jobs = createJobs(queryMode, resultFile, estimates, logger);
+		int maxParallel = getDescriptor().getMaxParallelJobs();
+		if (split(shardNodes, ",").size() > 1) {
+			// every shard node gets its jobs right away
+			maxParallel = Math.max(maxParallel, split(shardNodes, ",").size());
+		}
+		if (jobs.size() > 1 && queryMode == QueryMode.LONG_POLL) {
+			// a held query would stall the other jobs sharing the poller
+			for (ExecutionJob job : jobs) {
+				job.setQueryMode(QueryMode.DELTA);
+			}
+		}
+
+		// callbacks reach the master only, and the shared poller doesn't take them
+		String callbackBase = null;
+		if (getDescriptor().getPushCallbacks() && !runOnAgent && !getDescriptor().getSharedPolling()) {
+			String rootUrl = Jenkins.getInstance().getRootUrl();
+			if (rootUrl != null) {
+				callbackBase = rootUrl + CallbackAction.URL_NAME + "/";
+			} else if (logger != null) {
+				logger.info("no Jenkins URL configured, polling without callbacks");
+			}
+		}
+
+		return new ExecutionRunner.Builder(apiBase, l_userName, l_apiKey, proxy, settings, jobs, resultFile)
+				.setAddIssue(isAddIssue)
+				.setMaxParallel(maxParallel)
+				.setLongPollTimeout(getDescriptor().getLongPollTimeout())
+				.setScheduler(scheduler)
+				.setSharedPolling(getDescriptor().getSharedPolling())
+				.setCacheSubmissions(getDescriptor().getCacheSubmissions(), getDescriptor().getResultCacheTTL())
+				.setHistory(historyFile, estimates)
+				.setCallbackBase(callbackBase)
+				.setFailFast(new FailFastPolicy(failFastCount, failFastPercent, failFastTags))
+				.setMaxRunningJobs(getDescriptor().getMaxRunningJobs())
+				.setSequential(isSequential)
+				.build();
 	}
 
 	// Overridden for better type safety.
@@ -361,6 +687,10 @@ public class ExecutionBuilder extends Builder {
 	 */
 	@Extension // This indicates to Jenkins that this is an implementation of an extension point.
 	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+		public static final int DEFAULT_LONG_POLL_TIMEOUT = 30;
+		public static final int DEFAULT_MAX_PARALLEL_JOBS = 4;
+		public static final int DEFAULT_RESULT_CACHE_TTL = 300;
+
 		/**
 		 * To persist global configuration information,
 		 * simply store it in a field and call save().
@@ -377,6 +707,27 @@ public class ExecutionBuilder extends Builder {
 		private String proxyPort;
 		private String proxyUsername;
 		private String proxyPassword;
+		private int maxConnectionsPerRoute = ClientPool.DEFAULT_MAX_PER_ROUTE;
+		private int pollMinInterval = PollScheduler.DEFAULT_MIN_INTERVAL;
+		private int pollMaxInterval = PollScheduler.DEFAULT_MAX_INTERVAL;
+		private double pollBackoffFactor = PollScheduler.DEFAULT_BACKOFF_FACTOR;
+		private String queryMode = QueryMode.FULL.name();
+		private int longPollTimeout = DEFAULT_LONG_POLL_TIMEOUT;
+		private int maxParallelJobs = DEFAULT_MAX_PARALLEL_JOBS;
+		private boolean sharedPolling;
+		private int sharedPollInterval = JobMonitor.DEFAULT_INTERVAL;
+		private int connectTimeout = ClientSettings.DEFAULT_CONNECT_TIMEOUT;
+		private int readTimeout = ClientSettings.DEFAULT_READ_TIMEOUT;
+		private int maxRetries = ClientSettings.DEFAULT_MAX_RETRIES;
+		private int maxFailedPolls = ClientSettings.DEFAULT_MAX_FAILED_POLLS;
+		private int breakerThreshold = ClientSettings.DEFAULT_BREAKER_THRESHOLD;
+		private int breakerCooldown = ClientSettings.DEFAULT_BREAKER_COOLDOWN;
+		private boolean cacheSubmissions;
+		private int resultCacheTTL = DEFAULT_RESULT_CACHE_TTL;
+		private boolean pushCallbacks;
+		private boolean asyncClient;
+		private double maxRequestRate;
+		private int maxRunningJobs;
 
 		/**
 		 * In order to load the persisted global configuration, you have to
@@ -384,6 +735,9 @@ public class ExecutionBuilder extends Builder {
 		 */
 		public DescriptorImpl() {
 			load();
+			if (sharedPolling) {
+				JobMonitor.get().start(getSharedPollInterval());
+			}
 		}
 
 		/**
@@ -443,12 +797,54 @@ public class ExecutionBuilder extends Builder {
 			}
 			proxyUsername = formData.getString("proxyUsername");
 			proxyPassword = formData.getString("proxyPassword");
-			// ^Can also use req.bindJSON(this, formData);
-			//  (easier when there are many fields; need set* methods for this, like setUseFrench)
+			maxConnectionsPerRoute = parseInt(formData, "maxConnectionsPerRoute", ClientPool.DEFAULT_MAX_PER_ROUTE);
+			maxConnectionsPerRoute = maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : ClientPool.DEFAULT_MAX_PER_ROUTE;
+			pollMinInterval = parseInt(formData, "pollMinInterval", PollScheduler.DEFAULT_MIN_INTERVAL);
+			pollMaxInterval = parseInt(formData, "pollMaxInterval", PollScheduler.DEFAULT_MAX_INTERVAL);
+			pollBackoffFactor = parseDouble(formData, "pollBackoffFactor", PollScheduler.DEFAULT_BACKOFF_FACTOR);
+			queryMode = QueryMode.fromName(formData.optString("queryMode", "")).name();
+			longPollTimeout = parseInt(formData, "longPollTimeout", DEFAULT_LONG_POLL_TIMEOUT);
+			maxParallelJobs = parseInt(formData, "maxParallelJobs", DEFAULT_MAX_PARALLEL_JOBS);
+			sharedPolling = formData.optBoolean("sharedPolling", false);
+			sharedPollInterval = parseInt(formData, "sharedPollInterval", JobMonitor.DEFAULT_INTERVAL);
+			connectTimeout = parseInt(formData, "connectTimeout", ClientSettings.DEFAULT_CONNECT_TIMEOUT);
+			readTimeout = parseInt(formData, "readTimeout", ClientSettings.DEFAULT_READ_TIMEOUT);
+			maxRetries = parseInt(formData, "maxRetries", ClientSettings.DEFAULT_MAX_RETRIES);
+			maxFailedPolls = parseInt(formData, "maxFailedPolls", ClientSettings.DEFAULT_MAX_FAILED_POLLS);
+			breakerThreshold = parseInt(formData, "breakerThreshold", ClientSettings.DEFAULT_BREAKER_THRESHOLD);
+			breakerCooldown = parseInt(formData, "breakerCooldown", ClientSettings.DEFAULT_BREAKER_COOLDOWN);
+			cacheSubmissions = formData.optBoolean("cacheSubmissions", false);
+			resultCacheTTL = parseInt(formData, "resultCacheTTL", DEFAULT_RESULT_CACHE_TTL);
+			pushCallbacks = formData.optBoolean("pushCallbacks", false);
+			asyncClient = formData.optBoolean("asyncClient", false);
+			maxRequestRate = parseDouble(formData, "maxRequestRate", 0);
+			maxRunningJobs = parseInt(formData, "maxRunningJobs", 0);
+			if (sharedPolling) {
+				JobMonitor.get().start(getSharedPollInterval());
+			}
 			save();
 			return super.configure(req,formData);
 		}
 
+		/**
+		 * Returns the number in a field of the form, or <tt>defaultValue</tt> if it is empty or not a number.
+		 */
+		private static int parseInt(JSONObject formData, String key, int defaultValue) {
+			try {
+				return Integer.parseInt(formData.optString(key, "").trim());
+			} catch (NumberFormatException nfe) {
+				return defaultValue;
+			}
+		}
+
+		private static double parseDouble(JSONObject formData, String key, double defaultValue) {
+			try {
+				return Double.parseDouble(formData.optString(key, "").trim());
+			} catch (NumberFormatException nfe) {
+				return defaultValue;
+			}
+		}
+
 		/**
 		 * This method returns true if the global configuration says we should speak French.
 		 *
@@ -490,5 +886,139 @@ public class ExecutionBuilder extends Builder {
 		public String getProxyPassword() {
 			return proxyPassword;
 		}
+
+		/**
+		 * Returns the proxy settings in the form the API calls take them.
+		 */
+		public HashMap<String, String> getProxy() {
+			HashMap<String, String> proxy = new HashMap<String, String>();
+			proxy.put("server", proxyServer);
+			proxy.put("port", proxyPort);
+			proxy.put("username", proxyUsername);
+			proxy.put("password", proxyPassword);
+			return proxy;
+		}
+
+		public int getMaxConnectionsPerRoute() {
+			return maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : ClientPool.DEFAULT_MAX_PER_ROUTE;
+		}
+
+		public int getPollMinInterval() {
+			return pollMinInterval > 0 ? pollMinInterval : PollScheduler.DEFAULT_MIN_INTERVAL;
+		}
+
+		public int getPollMaxInterval() {
+			return pollMaxInterval > 0 ? pollMaxInterval : PollScheduler.DEFAULT_MAX_INTERVAL;
+		}
+
+		public double getPollBackoffFactor() {
+			return pollBackoffFactor >= 1 ? pollBackoffFactor : PollScheduler.DEFAULT_BACKOFF_FACTOR;
+		}
+
+		public QueryMode getQueryMode() {
+			return QueryMode.fromName(queryMode);
+		}
+
+		public int getLongPollTimeout() {
+			return longPollTimeout > 0 ? longPollTimeout : DEFAULT_LONG_POLL_TIMEOUT;
+		}
+
+		public int getMaxParallelJobs() {
+			return maxParallelJobs > 0 ? maxParallelJobs : DEFAULT_MAX_PARALLEL_JOBS;
+		}
+
+		public boolean getSharedPolling() {
+			return sharedPolling;
+		}
+
+		public int getSharedPollInterval() {
+			return sharedPollInterval > 0 ? sharedPollInterval : JobMonitor.DEFAULT_INTERVAL;
+		}
+
+		public int getConnectTimeout() {
+			return connectTimeout > 0 ? connectTimeout : ClientSettings.DEFAULT_CONNECT_TIMEOUT;
+		}
+
+		public int getReadTimeout() {
+			return readTimeout > 0 ? readTimeout : ClientSettings.DEFAULT_READ_TIMEOUT;
+		}
+
+		public int getMaxRetries() {
+			return maxRetries >= 0 ? maxRetries : ClientSettings.DEFAULT_MAX_RETRIES;
+		}
+
+		public int getMaxFailedPolls() {
+			return maxFailedPolls > 0 ? maxFailedPolls : ClientSettings.DEFAULT_MAX_FAILED_POLLS;
+		}
+
+		public int getBreakerThreshold() {
+			return breakerThreshold > 0 ? breakerThreshold : ClientSettings.DEFAULT_BREAKER_THRESHOLD;
+		}
+
+		public int getBreakerCooldown() {
+			return breakerCooldown > 0 ? breakerCooldown : ClientSettings.DEFAULT_BREAKER_COOLDOWN;
+		}
+
+		public boolean getCacheSubmissions() {
+			return cacheSubmissions;
+		}
+
+		/**
+		 * Returns the seconds a completed result is reused for identical submissions, 0 to not reuse results.
+		 */
+		public int getResultCacheTTL() {
+			return resultCacheTTL >= 0 ? resultCacheTTL : DEFAULT_RESULT_CACHE_TTL;
+		}
+
+		/**
+		 * Returns true if SWAT Hub is asked to push job events to {@link CallbackAction}.
+		 */
+		public boolean getPushCallbacks() {
+			return pushCallbacks;
+		}
+
+		/**
+		 * Returns true if the API calls go through the non-blocking {@link AsyncClientPool}.
+		 */
+		public boolean getAsyncClient() {
+			return asyncClient;
+		}
+
+		/**
+		 * Returns the API calls per second allowed for this JVM, 0 for no limit.
+		 */
+		public double getMaxRequestRate() {
+			return maxRequestRate > 0 ? maxRequestRate : 0;
+		}
+
+		/**
+		 * Returns the number of jobs that may run at once per SWAT Hub workspace, 0 for no limit.
+		 */
+		public int getMaxRunningJobs() {
+			return maxRunningJobs > 0 ? maxRunningJobs : 0;
+		}
+
+		public ClientSettings getClientSettings() {
+			return new ClientSettings(getMaxConnectionsPerRoute(), getConnectTimeout(), getReadTimeout(), getMaxRetries(), getMaxFailedPolls(),
+					getBreakerThreshold(), getBreakerCooldown(), getAsyncClient(), getMaxRequestRate());
+		}
+
+		/**
+		 * Serves the metrics of all SWAT Hub API calls and poll cycles since Jenkins started
+		 * as plain text, at <tt>/descriptorByName/com.swathub.jenkins.execution.ExecutionBuilder/metrics</tt>.
+		 * Only administrators may read them.
+		 */
+		public HttpResponse doMetrics() {
+			Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+			return HttpResponses.plainText(Metrics.global().snapshot().toText());
+		}
+
+		public ListBoxModel doFillQueryModeItems() {
+			ListBoxModel items = new ListBoxModel();
+			for (QueryMode mode : QueryMode.values()) {
+				items.add(mode.getDisplayName(), mode.name());
+			}
+			return items;
+		}
 	}
 }
@@ -0,0 +1,203 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * State of one SWAT Hub job started by a build step: the test set or tag group it
+ * runs, the jobID returned by <tt>/run</tt> and the progress seen so far.
+ */
+public class ExecutionJob implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String label;
+	private final String params;
+	private final TaskTracker tracker = new TaskTracker();
+	private String jobID;
+	private String name = "";
+	private String status = "";
+	private String revision;
+	private String etag;
+	private QueryMode queryMode;
+	private boolean completed;
+	private int failedPolls;
+	private long submittedAt;
+	private boolean attached;
+	private transient JobMonitor.Watch watch;
+	private transient Runnable onUpdate;
+	private transient long seenVersion;
+
+	/**
+	 * @param label
+	 *      the test set ID or tag group, used to prefix messages and name the test suite.
+	 * @param params
+	 *      the URL-encoded query parameters of the <tt>/run</tt> call.
+	 */
+	public ExecutionJob(String label, String params, QueryMode queryMode) {
+		this.label = label;
+		this.params = params;
+		this.queryMode = queryMode;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public String getParams() {
+		return params;
+	}
+
+	public TaskTracker getTracker() {
+		return tracker;
+	}
+
+	public String getJobID() {
+		return jobID;
+	}
+
+	/**
+	 * Records the jobID returned by <tt>/run</tt> and the time of submission.
+	 */
+	public void submitted(String jobID) {
+		this.jobID = jobID;
+		this.submittedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Attaches to a job submitted by another build with the same run parameters.
+	 */
+	public void attach(String jobID, long submittedAt) {
+		this.jobID = jobID;
+		this.submittedAt = submittedAt;
+		this.attached = true;
+	}
+
+	/**
+	 * Takes over a recently completed job with the same run parameters, whose final state
+	 * is then read with a single query.
+	 */
+	public void reuse(String jobID) {
+		this.jobID = jobID;
+		this.attached = true;
+	}
+
+	/**
+	 * Prepares the job for a runner resumed from its persisted state, which may be older
+	 * than the report written before. The next query is a full one, and the tasks that
+	 * already completed are handed out again as {@link TaskTracker.Transition#isReplayed() replayed}
+	 * completions, so the report can be written again from scratch.
+	 */
+	public void resumed() {
+		if (jobID == null) {
+			return;
+		}
+		tracker.replay();
+		revision = null;
+		etag = null;
+		completed = false;
+	}
+
+	/**
+	 * Returns true if the job was submitted by another build, which also posts its issues.
+	 */
+	public boolean isAttached() {
+		return attached;
+	}
+
+	/**
+	 * Returns when the job was submitted, or 0 if unknown.
+	 */
+	public long getSubmittedAt() {
+		return submittedAt;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Returns the <tt>ETag</tt> of the latest query result, or null.
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	public QueryMode getQueryMode() {
+		return queryMode;
+	}
+
+	public void setQueryMode(QueryMode queryMode) {
+		this.queryMode = queryMode;
+	}
+
+	public boolean isCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Registers this job with the shared {@link JobMonitor}, if not done yet.
+	 *
+	 * @param onUpdate
+	 *      called whenever the monitor delivers a result of this job, may be null.
+	 */
+	public void watch(String apiBase, String userName, String apiKey, final HashMap<String, String> proxy, ClientSettings settings,
+			Runnable onUpdate) {
+		if (watch == null) {
+			watch = JobMonitor.get().watch(apiBase, userName, apiKey, proxy, settings, jobID, onUpdate);
+			this.onUpdate = onUpdate;
+			seenVersion = 0;
+		}
+	}
+
+	public void unwatch() {
+		if (watch != null) {
+			JobMonitor.get().unwatch(watch, onUpdate);
+			watch = null;
+			onUpdate = null;
+		}
+	}
+
+	/**
+	 * Waits for the next result of this job from the shared {@link JobMonitor}.
+	 *
+	 * @return
+	 *      null if no new result arrived within <tt>timeout</tt> milliseconds.
+	 */
+	public JobStatus awaitShared(long timeout) throws Exception {
+		synchronized (watch) {
+			JobStatus status = watch.await(seenVersion, timeout);
+			seenVersion = watch.getVersion();
+			return status;
+		}
+	}
+
+	/**
+	 * Records a failed query and returns the number of consecutive failed queries.
+	 */
+	public int pollFailed() {
+		return ++failedPolls;
+	}
+
+	/**
+	 * Records the result of a job query and returns the task transitions it caused.
+	 * A not modified result changes nothing.
+	 */
+	public List<TaskTracker.Transition> update(JobStatus status) {
+		failedPolls = 0;
+		if (status.isNotModified()) {
+			return Collections.<TaskTracker.Transition>emptyList();
+		}
+		etag = status.getETag();
+		this.status = status.getStatus();
+		name = status.getName();
+		revision = status.getRevision();
+		completed = status.isCompleted();
+		return tracker.update(status.getTasks());
+	}
+}
@@ -0,0 +1,817 @@
+package com.swathub.jenkins.execution;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The submit/poll/report loop of a build step.
+ *
+ * <p>
+ * On the master, {@link #run(VirtualChannel, TaskListener)} sends every API call to the
+ * agent as a separate callable. The runner itself is serializable, so it can instead be
+ * sent to the agent once and run there with a null channel, in which case the API calls
+ * are made in place and only the console lines travel back through the listener.
+ *
+ * <p>
+ * The API key and the proxy are not serialized with the runner, so they don't end up in
+ * persisted state; they are set again with {@link #setCredentials}.
+ */
+public class ExecutionRunner implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String apiBase;
+	private final String userName;
+	private transient String apiKey;
+	private transient HashMap<String, String> proxy;
+	private final ClientSettings settings;
+	private final List<ExecutionJob> jobs;
+	private final boolean addIssue;
+	private final int maxParallel;
+	private final int longPollTimeout;
+	private final PollScheduler scheduler;
+	private final boolean sharedPolling;
+	private final FilePath resultFile;
+	private final boolean cacheSubmissions;
+	private final int resultCacheTTL;
+	private final File historyFile;
+	private final DurationHistory.Estimates estimates;
+	private final String callbackBase;
+	private final String callbackToken;
+	private final FailFastPolicy failFast;
+	private final int maxRunningJobs;
+	private final boolean sequential;
+	private boolean admittedOnMaster;
+	private transient BuildLog logger;
+	private transient Metrics metrics;
+	private transient Set<String> leases;
+	private transient long lastProgress;
+	private transient long lastEstimate;
+	private transient CallbackAction.Registration callback;
+	private transient Set<ExecutionJob> admitted;
+	private transient Map<String, Integer> totals;
+	private transient IssuePoster issuePoster;
+	private transient ResultWriter resultWriter;
+	private transient boolean held;
+	private transient Runnable onUpdate;
+
+	private static final long SHARED_WAIT = 5 * 60 * 1000;
+	private static final long ESTIMATE_INTERVAL = 60 * 1000;
+
+	private ExecutionRunner(Builder builder) {
+		this.apiBase = builder.apiBase;
+		this.userName = builder.userName;
+		this.apiKey = builder.apiKey;
+		this.proxy = builder.proxy;
+		this.settings = builder.settings;
+		this.jobs = builder.jobs;
+		this.addIssue = builder.addIssue;
+		this.maxParallel = builder.maxParallel;
+		this.longPollTimeout = builder.longPollTimeout;
+		this.scheduler = builder.scheduler;
+		this.sharedPolling = builder.sharedPolling;
+		this.resultFile = builder.resultFile;
+		this.cacheSubmissions = builder.cacheSubmissions;
+		this.resultCacheTTL = builder.resultCacheTTL;
+		this.historyFile = builder.historyFile;
+		this.estimates = builder.estimates;
+		this.callbackBase = builder.callbackBase;
+		this.callbackToken = builder.callbackBase != null ? CallbackAction.newToken() : null;
+		this.failFast = builder.failFast != null && builder.failFast.isEnabled() ? builder.failFast : null;
+		this.maxRunningJobs = builder.maxRunningJobs;
+		this.sequential = builder.sequential;
+	}
+
+	/**
+	 * Collects the settings of a runner. Everything but the connection, the jobs and the
+	 * report file is optional and defaults to the defaults of the global configuration.
+	 */
+	public static class Builder {
+		private final String apiBase;
+		private final String userName;
+		private final String apiKey;
+		private final HashMap<String, String> proxy;
+		private final ClientSettings settings;
+		private final List<ExecutionJob> jobs;
+		private final FilePath resultFile;
+		private boolean addIssue;
+		private int maxParallel = ExecutionBuilder.DescriptorImpl.DEFAULT_MAX_PARALLEL_JOBS;
+		private int longPollTimeout = ExecutionBuilder.DescriptorImpl.DEFAULT_LONG_POLL_TIMEOUT;
+		private PollScheduler scheduler = new PollScheduler(PollScheduler.DEFAULT_MIN_INTERVAL, PollScheduler.DEFAULT_MAX_INTERVAL,
+				PollScheduler.DEFAULT_BACKOFF_FACTOR);
+		private boolean sharedPolling;
+		private boolean cacheSubmissions;
+		private int resultCacheTTL = ExecutionBuilder.DescriptorImpl.DEFAULT_RESULT_CACHE_TTL;
+		private File historyFile;
+		private DurationHistory.Estimates estimates;
+		private String callbackBase;
+		private FailFastPolicy failFast;
+		private int maxRunningJobs;
+		private boolean sequential;
+
+		public Builder(String apiBase, String userName, String apiKey, final HashMap<String, String> proxy, ClientSettings settings,
+				List<ExecutionJob> jobs, FilePath resultFile) {
+			this.apiBase = apiBase;
+			this.userName = userName;
+			this.apiKey = apiKey;
+			this.proxy = proxy;
+			this.settings = settings;
+			this.jobs = jobs;
+			this.resultFile = resultFile;
+		}
+
+		public Builder setAddIssue(boolean addIssue) {
+			this.addIssue = addIssue;
+			return this;
+		}
+
+		public Builder setMaxParallel(int maxParallel) {
+			this.maxParallel = maxParallel;
+			return this;
+		}
+
+		public Builder setLongPollTimeout(int longPollTimeout) {
+			this.longPollTimeout = longPollTimeout;
+			return this;
+		}
+
+		public Builder setScheduler(PollScheduler scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		public Builder setSharedPolling(boolean sharedPolling) {
+			this.sharedPolling = sharedPolling;
+			return this;
+		}
+
+		/**
+		 * Shares identical submissions with other builds, and reuses their results for
+		 * <tt>resultCacheTTL</tt> seconds, see {@link SubmissionCache}.
+		 */
+		public Builder setCacheSubmissions(boolean cacheSubmissions, int resultCacheTTL) {
+			this.cacheSubmissions = cacheSubmissions;
+			this.resultCacheTTL = resultCacheTTL;
+			return this;
+		}
+
+		/**
+		 * Sets the {@link DurationHistory} the report is recorded in, and the estimates read from it.
+		 */
+		public Builder setHistory(File historyFile, DurationHistory.Estimates estimates) {
+			this.historyFile = historyFile;
+			this.estimates = estimates;
+			return this;
+		}
+
+		/**
+		 * Sets the URL the {@link CallbackAction} of this Jenkins is reached at, or null to only poll.
+		 */
+		public Builder setCallbackBase(String callbackBase) {
+			this.callbackBase = callbackBase;
+			return this;
+		}
+
+		public Builder setFailFast(FailFastPolicy failFast) {
+			this.failFast = failFast;
+			return this;
+		}
+
+		/**
+		 * Caps the running jobs of the workspace through the {@link AdmissionQueue}, 0 for no limit.
+		 */
+		public Builder setMaxRunningJobs(int maxRunningJobs) {
+			this.maxRunningJobs = maxRunningJobs;
+			return this;
+		}
+
+		public Builder setSequential(boolean sequential) {
+			this.sequential = sequential;
+			return this;
+		}
+
+		public ExecutionRunner build() {
+			return new ExecutionRunner(this);
+		}
+	}
+
+	/**
+	 * Sets the API key and the proxy, which are not serialized with the runner, e.g. after it
+	 * was restored from its persisted state or sent to the agent.
+	 */
+	public void setCredentials(String apiKey, final HashMap<String, String> proxy) {
+		this.apiKey = apiKey;
+		this.proxy = proxy;
+	}
+
+	String getApiKey() {
+		return apiKey;
+	}
+
+	HashMap<String, String> getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * Polls the jobs through the shared {@link JobMonitor} without waiting for its results:
+	 * <tt>onUpdate</tt> is called whenever the monitor delivers a result of one of the jobs,
+	 * or the {@link PollScheduler} is woken, and the next {@link #cycle} takes what was delivered.
+	 */
+	public void setOnUpdate(Runnable onUpdate) {
+		this.onUpdate = onUpdate;
+		scheduler.setOnWake(onUpdate);
+	}
+
+	/**
+	 * Returns true if the last {@link #cycle} already waited for its results, so the next one
+	 * is due right away.
+	 */
+	public boolean isHeld() {
+		return held;
+	}
+
+	public PollScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Sets the logger for debug messages. It is not sent along when the runner is moved to the agent.
+	 */
+	public void setLogger(BuildLog logger) {
+		this.logger = logger;
+	}
+
+	public List<ExecutionJob> getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * Prepares a runner restored from its persisted state to run again. Its report is
+	 * written again from a full query of each job, see {@link ExecutionJob#resumed()}.
+	 */
+	public void resumed() {
+		for (ExecutionJob job : jobs) {
+			job.resumed();
+		}
+	}
+
+	/**
+	 * Returns the totals of the report written by the last {@link #run}, see {@link ResultWriter#getTotals()}.
+	 */
+	public Map<String, Integer> getTotals() {
+		return totals;
+	}
+
+	/**
+	 * Returns the metrics of the API calls and poll cycles made by this runner in this JVM.
+	 * Calls made by the shared {@link JobMonitor} are only counted in {@link Metrics#global()}.
+	 */
+	public synchronized Metrics getMetrics() {
+		if (metrics == null) {
+			metrics = new Metrics();
+		}
+		return metrics;
+	}
+
+	/**
+	 * Runs all jobs to completion and writes the report. Jobs submitted by an earlier,
+	 * interrupted run are picked up where they were left.
+	 *
+	 * <p>
+	 * If the {@link FailFastPolicy} triggers, the jobs are stopped, the report is written
+	 * with the remaining tasks skipped, and an {@link AbortException} is thrown.
+	 *
+	 * @param channel
+	 *      the channel to make API calls through, or null to make them in this JVM.
+	 */
+	public void run(VirtualChannel channel, TaskListener listener) throws Exception {
+		begin(channel);
+		boolean completed = false;
+		try {
+			while (cycle(channel, listener)) {
+				if (!held) {
+					scheduler.await();
+				}
+			}
+			completed = true;
+		} finally {
+			end(channel, listener, completed);
+		}
+	}
+
+	/**
+	 * Starts a run that is driven one {@link #cycle} at a time, e.g. by a caller that doesn't
+	 * wait in {@link PollScheduler#await()}. Must be followed by {@link #end}.
+	 */
+	public void begin(VirtualChannel channel) throws IOException, InterruptedException {
+		issuePoster = addIssue ? new IssuePoster(channel, apiBase, userName, apiKey, proxy, settings, getMetrics()) : null;
+		resultWriter = new ResultWriter(resultFile, jobs);
+		lastProgress = System.currentTimeMillis();
+	}
+
+	/**
+	 * Ends a run started with {@link #begin}, giving back what its jobs held. If the run
+	 * <tt>completed</tt> the report is written, and an {@link AbortException} is thrown if
+	 * the {@link FailFastPolicy} stopped the jobs; otherwise the report is discarded.
+	 */
+	public void end(VirtualChannel channel, TaskListener listener, boolean completed) throws Exception {
+		if (!completed) {
+			resultWriter.abort();
+		}
+		if (callbackToken != null) {
+			CallbackAction.unregister(callbackToken);
+		}
+		for (ExecutionJob job : jobs) {
+			job.unwatch();
+		}
+		for (String key : getLeases()) {
+			SubmissionCache.get().release(key);
+		}
+		getLeases().clear();
+		if (!admittedOnMaster) {
+			releaseAdmission();
+		}
+		if (issuePoster != null) {
+			issuePoster.flush();
+			listener.getLogger().println(issuePoster.getSummary());
+		}
+		printConnectionStatus(channel, listener);
+		if (!completed) {
+			return;
+		}
+		listener.getLogger().println(scheduler.getSummary());
+
+		resultWriter.finish();
+		totals = resultWriter.getTotals();
+		if (failFast != null && failFast.getReason() != null) {
+			throw new AbortException("SWAT Hub execution stopped early: " + failFast.getReason());
+		}
+	}
+
+	/**
+	 * Stops the running jobs of a run started with {@link #begin}, see {@link #stopJobs}, and
+	 * ends the run without a report.
+	 */
+	public void stop(VirtualChannel channel, TaskListener listener) throws Exception {
+		try {
+			stopJobs(channel, listener);
+		} finally {
+			end(channel, listener, false);
+		}
+	}
+
+	/**
+	 * Takes the slots of the {@link AdmissionQueue} for as many jobs as this runner may run
+	 * at once, waiting in the queue of the workspace until it gets them. Called on the master
+	 * before the runner is sent to the agent, so the cap covers all builds, whichever JVM runs
+	 * their loop; the runner then doesn't queue its jobs itself. The slots must be given back
+	 * with {@link #releaseAdmission()}, also if this method throws.
+	 */
+	public void admit(TaskListener listener) throws InterruptedException {
+		if (maxRunningJobs <= 0) {
+			return;
+		}
+		admittedOnMaster = true;
+		for (ExecutionJob job : jobs.subList(0, Math.min(jobs.size(), maxParallel))) {
+			String prefix = jobs.size() > 1 ? "[" + job.getLabel() + "] " : "";
+			while (!AdmissionQueue.get(apiBase).tryAcquire(job, maxRunningJobs, scheduler, listener.getLogger(), prefix)) {
+				scheduler.await();
+			}
+			getAdmitted().add(job);
+		}
+	}
+
+	/**
+	 * Gives back the slots of the {@link AdmissionQueue} held by this runner's jobs, and drops
+	 * its jobs still waiting for one.
+	 */
+	public void releaseAdmission() {
+		if (maxRunningJobs > 0) {
+			for (ExecutionJob job : jobs) {
+				AdmissionQueue.get(apiBase).cancel(job);
+			}
+			for (int i = 0; i < getAdmitted().size(); i++) {
+				AdmissionQueue.get(apiBase).release();
+			}
+		}
+		getAdmitted().clear();
+	}
+
+	/**
+	 * Adds the case durations of the written report to the {@link DurationHistory}, if there is one.
+	 * Has to be called in the Jenkins master JVM, where the history is kept. A failure
+	 * is only printed, it doesn't fail the build.
+	 */
+	public void recordHistory(TaskListener listener) throws InterruptedException {
+		try {
+			if (historyFile != null && resultFile.exists()) {
+				DurationHistory.get(historyFile).recordReport(resultFile);
+			}
+		} catch (IOException e) {
+			listener.getLogger().println("couldn't record the durations of this run: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Submits jobs through <tt>/run</tt> until the parallel limit is reached. Jobs that already
+	 * have a jobID, such as those of a resumed runner, are not submitted again. With the
+	 * {@link SubmissionCache}, a job attaches to a running identical submission or reuses
+	 * the result of a recently completed one instead. With a cap on the running jobs of
+	 * the workspace, a job that gets no slot of the {@link AdmissionQueue} stays pending, and
+	 * it and the jobs after it are submitted by a later call. Never waits for a slot. Jobs
+	 * restored with their jobID take a slot again, whether or not one is free, as they are
+	 * running already.
+	 */
+	public void submit(VirtualChannel channel, TaskListener listener) throws Exception {
+		if (callbackToken != null && callback == null) {
+			// registered before the first /run, so no early callback is lost
+			callback = CallbackAction.register(callbackToken, apiKey, scheduler);
+		}
+
+		boolean queued = maxRunningJobs > 0 && !admittedOnMaster;
+		int running = 0;
+		for (ExecutionJob job : jobs) {
+			if (job.getJobID() != null && !job.isCompleted()) {
+				running++;
+				if (queued && !job.isAttached() && getAdmitted().add(job)) {
+					// restored after a restart, which forgot the slots taken before
+					AdmissionQueue.get(apiBase).acquireRunning();
+				}
+			}
+		}
+
+		for (ExecutionJob job : jobs) {
+			if (running >= maxParallel) {
+				break;
+			}
+			if (job.getJobID() != null) {
+				continue;
+			}
+
+			String prefix = jobs.size() > 1 ? "[" + job.getLabel() + "] " : "";
+			SubmissionCache.Lease lease = null;
+			if (cacheSubmissions) {
+				lease = SubmissionCache.get().acquire(SubmissionCache.getKey(apiBase, userName, job.getParams()), resultCacheTTL * 1000L);
+				if (lease.isCompleted()) {
+					job.reuse(lease.getJobID());
+					listener.getLogger().println(prefix + "reusing the result of job " + job.getJobID() + " with the same parameters");
+					continue;
+				}
+				if (lease.getJobID() != null) {
+					job.attach(lease.getJobID(), lease.getSubmittedAt());
+					getLeases().add(lease.getKey());
+					listener.getLogger().println(prefix + "attached to running job " + job.getJobID() + " with the same parameters");
+					running++;
+					continue;
+				}
+			}
+
+			if (queued) {
+				if (!AdmissionQueue.get(apiBase).tryAcquire(job, maxRunningJobs, scheduler, listener.getLogger(), prefix)) {
+					if (lease != null && lease.isOwner()) {
+						// nothing was submitted yet, the submission is looked up again on the next call
+						SubmissionCache.get().failed(lease.getKey());
+					}
+					break;
+				}
+				getAdmitted().add(job);
+			}
+
+			JSONObject jobResult;
+			try {
+				String runUrl = apiBase + "/run?" + job.getParams();
+				if (callbackToken != null) {
+					runUrl += "&callbackUrl=" + URLEncoder.encode(callbackBase + callbackToken, "UTF-8");
+				}
+				jobResult = call(channel, new ExecutionBuilder.PostCallable(runUrl, userName, apiKey, proxy, settings));
+			} catch (Exception e) {
+				if (lease != null && lease.isOwner()) {
+					SubmissionCache.get().failed(lease.getKey());
+				}
+				if (getAdmitted().remove(job)) {
+					AdmissionQueue.get(apiBase).release();
+				}
+				throw e;
+			}
+			job.submitted(jobResult.getString("jobID"));
+			if (lease != null && lease.isOwner()) {
+				SubmissionCache.get().submitted(lease.getKey(), job.getJobID(), job.getSubmittedAt());
+				getLeases().add(lease.getKey());
+			}
+			if (jobs.size() > 1) {
+				listener.getLogger().println("[" + job.getLabel() + "] started job " + job.getJobID());
+			}
+			running++;
+		}
+	}
+
+	/**
+	 * Runs one poll cycle of a run started with {@link #begin}: submits the jobs that may
+	 * start, queries the running ones and reports their completed tasks.
+	 *
+	 * @return false if all jobs completed or were stopped by the fail-fast policy, so the
+	 *      run is to be ended with {@link #end}; true if another cycle is due, right away if
+	 *      {@link #isHeld()} and else after the delay of the {@link PollScheduler}.
+	 */
+	public boolean cycle(VirtualChannel channel, TaskListener listener) throws Exception {
+		long cycleStart = System.currentTimeMillis();
+		boolean multiple = jobs.size() > 1;
+		held = false;
+		submit(channel, listener);
+		List<ExecutionJob> active = new ArrayList<ExecutionJob>();
+		boolean pending = false;
+		for (ExecutionJob job : jobs) {
+			if (job.getJobID() == null) {
+				pending = true;
+			} else if (!job.isCompleted()) {
+				active.add(job);
+			}
+		}
+
+		boolean progress = false;
+		int completedCount = 0;
+		int totalCount = 0;
+		for (ExecutionJob job : active) {
+			TaskTracker tracker = job.getTracker();
+			JobStatus execResult;
+			try {
+				String key = SubmissionCache.getKey(apiBase, userName, job.getParams());
+				if (sharedPolling || onUpdate != null || getLeases().contains(key)) {
+					// a cached submission may be shared by other builds, which then share its poller
+					// the monitor paces the queries, so waiting for its next result replaces the scheduler's delay
+					job.watch(apiBase, userName, apiKey, proxy, settings, onUpdate);
+					execResult = job.awaitShared(onUpdate != null ? 0 : SHARED_WAIT);
+					held = onUpdate == null;
+				} else {
+					String queryUrl = apiBase + "/jobs/" + job.getJobID() + "/query";
+					log("get:" + queryUrl);
+					long queryStart = System.currentTimeMillis();
+					execResult = call(channel, new ExecutionBuilder.GetCallable(queryUrl, userName, apiKey, proxy, settings,
+							job.getQueryMode(), job.getRevision(), longPollTimeout, job.getETag()));
+					if (job.getQueryMode() != QueryMode.FULL && !execResult.isNotModified() && execResult.getRevision() == null) {
+						log("delta queries not supported by server, falling back to full queries");
+						job.setQueryMode(QueryMode.FULL);
+					}
+					// a long-poll answer that was held by the server can be followed by the next query right away
+					held = job.getQueryMode() == QueryMode.LONG_POLL && System.currentTimeMillis() - queryStart >= 1000;
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				// calls are already retried, so this poll is lost; the job is polled again next cycle
+				int failedPolls = job.pollFailed();
+				listener.getLogger().println((multiple ? "[" + job.getLabel() + "] " : "") + "query of job " + job.getJobID() +
+						" failed (" + failedPolls + "/" + settings.getMaxFailedPolls() + "): " + e.getMessage());
+				if (failedPolls >= settings.getMaxFailedPolls()) {
+					throw e;
+				}
+				execResult = null;
+			}
+
+			if (execResult == null) {
+				completedCount += tracker.getCompletedCount();
+				totalCount += tracker.getTotalCount();
+				continue;
+			}
+			for (TaskTracker.Transition transition : job.update(execResult)) {
+				if (!transition.isCompletion()) {
+					continue;
+				}
+
+				JobStatus.Task task = transition.getTask();
+				resultWriter.add(job, task);
+				if (transition.isReplayed()) {
+					// reported before the runner was resumed
+					continue;
+				}
+				progress = true;
+				String message = tracker.timestamp() + " " + (multiple ? "[" + job.getLabel() + "] " : "") + task.getDescription() +
+						" :   " + task.getStatus() + " (" + transition.getCompletedCount() + "/" +
+						tracker.getTotalCount() + ")";
+				listener.getLogger().println(message);
+
+				if (issuePoster != null && !job.isAttached() && task.getStatus().equals("failed") && task.hasError()) {
+					issuePoster.post(task.getResultID(), task.getError());
+				}
+				if (failFast != null) {
+					failFast.completed(task);
+				}
+			}
+			completedCount += tracker.getCompletedCount();
+			totalCount += tracker.getTotalCount();
+		}
+
+		boolean running = false;
+		for (ExecutionJob job : active) {
+			if (job.isCompleted()) {
+				String key = SubmissionCache.getKey(apiBase, userName, job.getParams());
+				if (getLeases().remove(key)) {
+					SubmissionCache.get().completed(key, job.getJobID());
+				}
+				if (job.getSubmittedAt() > 0) {
+					getMetrics().jobCompleted(System.currentTimeMillis() - job.getSubmittedAt());
+				}
+				job.unwatch();
+				if (getAdmitted().remove(job)) {
+					AdmissionQueue.get(apiBase).release();
+				}
+				if (multiple) {
+					listener.getLogger().println("[" + job.getLabel() + "] job " + job.getJobID() + " completed");
+				}
+			} else {
+				running = true;
+			}
+		}
+
+		getMetrics().pollCycle(System.currentTimeMillis() - cycleStart);
+		scheduler.polled(completedCount, totalCount);
+		if (!running && !pending) {
+			return false;
+		}
+		if (failFast != null && failFast.getReason() != null) {
+			listener.getLogger().println("fail-fast: " + failFast.getReason() + ", stopping the remaining jobs");
+			stopJobs(channel, listener);
+			return false;
+		}
+		if (estimates != null) {
+			estimate(progress, listener);
+		}
+		if (callback != null && callback.isReceived()) {
+			// the server pushes its events, polling is only kept in case one gets lost
+			scheduler.idle();
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the running jobs this build submitted through <tt>/jobs/{jobID}/stop</tt>.
+	 * Jobs attached to another build's submission, and submissions of this build other
+	 * builds have attached to, are left running for those builds.
+	 */
+	private void stopJobs(VirtualChannel channel, TaskListener listener) throws InterruptedException {
+		for (ExecutionJob job : jobs) {
+			if (job.getJobID() == null || job.isCompleted() || job.isAttached()) {
+				continue;
+			}
+			String prefix = jobs.size() > 1 ? "[" + job.getLabel() + "] " : "";
+			String key = SubmissionCache.getKey(apiBase, userName, job.getParams());
+			if (getLeases().contains(key) && !SubmissionCache.get().stopping(key)) {
+				listener.getLogger().println(prefix + "left job " + job.getJobID() + " running for the other builds attached to it");
+				continue;
+			}
+			try {
+				call(channel, new ExecutionBuilder.PostCallable(apiBase + "/jobs/" + job.getJobID() + "/stop", userName, apiKey, proxy, settings));
+				listener.getLogger().println(prefix + "stopped job " + job.getJobID());
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				listener.getLogger().println(prefix + "couldn't stop job " + job.getJobID() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Prints the expected time to finish at most once per {@link #ESTIMATE_INTERVAL} after
+	 * a task completed, and tells the scheduler when the next completion is expected.
+	 *
+	 * <p>
+	 * The tasks of a job that doesn't run sequentially are executed side by side, so its
+	 * remaining time is the expected duration of its pending tasks divided by the number of
+	 * tasks running now. The next completion is expected from the running task that is due first.
+	 */
+	private void estimate(boolean progress, TaskListener listener) {
+		long now = System.currentTimeMillis();
+		if (progress) {
+			lastProgress = now;
+		}
+
+		long remaining = -1;
+		long next = -1;
+		for (ExecutionJob job : jobs) {
+			if (job.isCompleted()) {
+				continue;
+			}
+			if (job.getJobID() == null) {
+				double expected = estimates.get(DurationHistory.UNIT_PREFIX + job.getLabel());
+				remaining = Math.max(remaining, (long) (expected * 1000));
+				continue;
+			}
+
+			List<JobStatus.Task> pending = job.getTracker().getPending();
+			double known = 0;
+			int knownCount = 0;
+			for (JobStatus.Task task : pending) {
+				double expected = estimates.get(task.getDescription());
+				if (expected >= 0) {
+					known += expected;
+					knownCount++;
+				}
+			}
+			if (knownCount == 0) {
+				continue;
+			}
+
+			// cases without history are expected to take as long as the others on average
+			double total = 0;
+			double first = -1;
+			int runningCount = 0;
+			for (JobStatus.Task task : pending) {
+				double expected = estimates.get(task.getDescription());
+				expected = expected >= 0 ? expected : known / knownCount;
+				total += expected;
+				if (task.isRunning()) {
+					runningCount++;
+					first = first < 0 ? expected : Math.min(first, expected);
+				}
+			}
+			int parallelism = sequential ? 1 : Math.max(runningCount, 1);
+			long elapsed = now - lastProgress;
+			remaining = Math.max(remaining, Math.max((long) (total * 1000 / parallelism) - elapsed, 0));
+			if (first < 0) {
+				// nothing is running yet, so no completion is due
+				continue;
+			}
+			long untilNext = (long) (first * 1000) - elapsed;
+			if (untilNext > 0 && (next == -1 || untilNext < next)) {
+				next = untilNext;
+			}
+		}
+
+		if (next > 0) {
+			scheduler.expect(next);
+		}
+		if (remaining > 0 && (progress || lastEstimate == 0) && now - lastEstimate >= ESTIMATE_INTERVAL) {
+			lastEstimate = now;
+			listener.getLogger().println("estimated time to finish: " + formatDuration(remaining));
+		}
+	}
+
+	private static String formatDuration(long millis) {
+		long seconds = (millis + 999) / 1000;
+		if (seconds < 60) {
+			return seconds + "s";
+		}
+		long minutes = (seconds + 59) / 60;
+		return minutes < 60 ? minutes + "m" : (minutes / 60) + "h " + (minutes % 60) + "m";
+	}
+
+	/**
+	 * Returns the jobs holding a slot of the {@link AdmissionQueue}.
+	 */
+	private synchronized Set<ExecutionJob> getAdmitted() {
+		if (admitted == null) {
+			admitted = new HashSet<ExecutionJob>();
+		}
+		return admitted;
+	}
+
+	private synchronized Set<String> getLeases() {
+		if (leases == null) {
+			leases = new HashSet<String>();
+		}
+		return leases;
+	}
+
+	/**
+	 * Prints the state of the {@link CircuitBreaker} of the SWAT Hub host and its call, retry
+	 * and rejection counters, as kept in the JVM that made the API calls. Called at the end
+	 * of every run, also a failed one, so it must not throw.
+	 */
+	private void printConnectionStatus(VirtualChannel channel, TaskListener listener) {
+		Callable<String, Exception> callable = new ExecutionBuilder.ConnectionStatusCallable(apiBase);
+		try {
+			String status = channel != null ? channel.call(callable) : callable.call();
+			if (status != null) {
+				listener.getLogger().println(status);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			listener.getLogger().println("couldn't read the SWAT Hub connection status: " + e.getMessage());
+		}
+	}
+
+	private <V> V call(VirtualChannel channel, Callable<V, Exception> callable) throws Exception {
+		return MeteredCallable.call(channel, callable, getMetrics());
+	}
+
+	private void log(String message) {
+		if (logger != null) {
+			logger.info(message);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides when the failures of a build step are bad enough to stop its jobs early.
+ *
+ * <p>
+ * The policy triggers on the first of: a number of failed tasks, a percentage of failed
+ * tasks among the completed ones once at least {@link #MIN_COMPLETED} completed, or a
+ * failed task carrying one of the critical tags. A limit of 0 and an empty tag list are off.
+ */
+public class FailFastPolicy implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int MIN_COMPLETED = 5;
+
+	private final int maxFailures;
+	private final int maxFailurePercent;
+	private final List<String> criticalTags = new ArrayList<String>();
+
+	private int completed;
+	private int failed;
+	private String reason;
+
+	/**
+	 * @param criticalTags
+	 *      comma-separated tags, a failed task with any of them triggers the policy.
+	 */
+	public FailFastPolicy(int maxFailures, int maxFailurePercent, String criticalTags) {
+		this.maxFailures = Math.max(maxFailures, 0);
+		this.maxFailurePercent = Math.max(Math.min(maxFailurePercent, 100), 0);
+		if (criticalTags != null) {
+			for (String tag : criticalTags.split(",")) {
+				if (!tag.trim().isEmpty()) {
+					this.criticalTags.add(tag.trim());
+				}
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return maxFailures > 0 || maxFailurePercent > 0 || !criticalTags.isEmpty();
+	}
+
+	/**
+	 * Counts a completed task and returns true if the policy triggered with it, or before.
+	 */
+	public boolean completed(JobStatus.Task task) {
+		completed++;
+		if (!task.getStatus().equals("failed") || reason != null) {
+			return reason != null;
+		}
+
+		failed++;
+		for (String tag : task.getTags()) {
+			if (criticalTags.contains(tag)) {
+				reason = "task '" + task.getDescription() + "' with critical tag " + tag + " failed";
+				return true;
+			}
+		}
+		if (maxFailures > 0 && failed >= maxFailures) {
+			reason = failed + " tasks failed";
+		} else if (maxFailurePercent > 0 && completed >= MIN_COMPLETED && failed * 100 >= maxFailurePercent * completed) {
+			reason = failed + " of " + completed + " completed tasks failed";
+		}
+		return reason != null;
+	}
+
+	/**
+	 * Returns why the policy triggered, or null if it didn't.
+	 */
+	public String getReason() {
+		return reason;
+	}
+}
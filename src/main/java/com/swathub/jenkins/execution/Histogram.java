@@ -0,0 +1,118 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, e.g. latencies in milliseconds.
+ *
+ * <p>
+ * Values are counted in power-of-two buckets, so recording is a few atomic increments
+ * and the percentiles of a {@link Snapshot} are accurate to within a factor of two.
+ */
+public class Histogram {
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		value = Math.max(value, 0);
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Adds the values of a snapshot, e.g. of a build that ran on an agent.
+	 */
+	public void add(Snapshot snapshot) {
+		for (int i = 0; i < BUCKETS && i < snapshot.buckets.length; i++) {
+			if (snapshot.buckets[i] > 0) {
+				buckets.addAndGet(i, snapshot.buckets[i]);
+			}
+		}
+		count.addAndGet(snapshot.count);
+		sum.addAndGet(snapshot.sum);
+		long current = max.get();
+		while (snapshot.max > current && !max.compareAndSet(current, snapshot.max)) {
+			current = max.get();
+		}
+	}
+
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return new Snapshot(counts, count.get(), sum.get(), max.get());
+	}
+
+	private static int bucket(long value) {
+		// bucket 0 holds 0, bucket i holds [2^(i-1), 2^i)
+		return Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+	}
+
+	/**
+	 * The values of a histogram at one point in time.
+	 */
+	public static class Snapshot implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] buckets, long count, long sum, long max) {
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSum() {
+			return sum;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public long getMean() {
+			return count > 0 ? sum / count : 0;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the given percentile, capped at the maximum.
+		 */
+		public long getPercentile(double percentile) {
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + getMean() + " p50=" + getPercentile(50) + " p90=" + getPercentile(90) +
+					" p99=" + getPercentile(99) + " max=" + max;
+		}
+	}
+}
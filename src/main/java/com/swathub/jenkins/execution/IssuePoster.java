@@ -0,0 +1,200 @@
+package com.swathub.jenkins.execution;
+
+import hudson.remoting.VirtualChannel;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Posts the errors of failed tasks as issue comments in the background, so the poll
+ * loop isn't held up by one comment call per failure.
+ *
+ * <p>
+ * Comments are queued in a bounded queue and sent by a small pool of workers. A worker
+ * takes every comment waiting in the queue and sends them in one call to
+ * <tt>/comments/batch</tt>; if the server doesn't support that endpoint, comments are
+ * sent one by one to <tt>/results/{resultID}/comments</tt> as before. Failed calls are
+ * retried by the client itself, which only resends a comment that can't have reached the
+ * server. {@link #flush()} waits for all queued comments; those still queued when it
+ * gives up are listed in {@link #getSummary()}.
+ */
+public class IssuePoster {
+	private static final int WORKERS = 2;
+	private static final int QUEUE_SIZE = 1000;
+	private static final int MAX_BATCH = 50;
+	private static final long FLUSH_TIMEOUT_MINUTES = 10;
+
+	private final VirtualChannel channel;
+	private final String apiBase;
+	private final String userName;
+	private final String apiKey;
+	private final HashMap<String, String> proxy;
+	private final ClientSettings settings;
+	private final Metrics metrics;
+
+	private final BlockingQueue<Comment> comments = new ArrayBlockingQueue<Comment>(QUEUE_SIZE);
+	private final ExecutorService workers;
+	private final AtomicInteger posted = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final List<String> dropped = new ArrayList<String>();
+	private volatile boolean batchSupported = true;
+
+	private static class Comment {
+		private final String resultID;
+		private final String content;
+
+		private Comment(String resultID, String content) {
+			this.resultID = resultID;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * @param channel
+	 *      the channel to make API calls through, or null to make them in this JVM.
+	 * @param metrics
+	 *      records the API calls, may be null.
+	 */
+	public IssuePoster(VirtualChannel channel, String apiBase, String userName, String apiKey,
+			final HashMap<String, String> proxy, ClientSettings settings, Metrics metrics) {
+		this.channel = channel;
+		this.apiBase = apiBase;
+		this.userName = userName;
+		this.apiKey = apiKey;
+		this.proxy = proxy;
+		this.settings = settings;
+		this.metrics = metrics;
+		// every submitted drain takes whatever is queued at that moment, so the executor's
+		// own queue only needs one pending drain per comment and can't outgrow the comments
+		this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "SWAT Hub issue poster " + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Queues the error of a failed task. Blocks while the queue is full.
+	 */
+	public void post(String resultID, String content) throws InterruptedException {
+		comments.put(new Comment(resultID, content));
+		workers.execute(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	/**
+	 * Waits until all queued comments have been sent and stops the workers. Comments
+	 * still queued after {@link #FLUSH_TIMEOUT_MINUTES} are dropped and recorded.
+	 */
+	public void flush() throws InterruptedException {
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(FLUSH_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+				workers.shutdownNow();
+			}
+		} finally {
+			List<Comment> remaining = new ArrayList<Comment>();
+			comments.drainTo(remaining);
+			synchronized (dropped) {
+				for (Comment comment : remaining) {
+					dropped.add(comment.resultID);
+				}
+			}
+		}
+	}
+
+	public int getPosted() {
+		return posted.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the result IDs of the comments that were still queued when {@link #flush()} gave up.
+	 */
+	public List<String> getDropped() {
+		synchronized (dropped) {
+			return new ArrayList<String>(dropped);
+		}
+	}
+
+	public String getSummary() {
+		List<String> l_dropped = getDropped();
+		return "Posted " + posted.get() + " issue comments to SWAT Hub" + (failed.get() > 0 ? ", " + failed.get() + " failed" : "") +
+				(l_dropped.isEmpty() ? "" : ", " + l_dropped.size() + " not posted in time for results " + l_dropped);
+	}
+
+	private void drain() {
+		List<Comment> batch = new ArrayList<Comment>();
+		comments.drainTo(batch, MAX_BATCH);
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		if (batch.size() > 1 && batchSupported) {
+			try {
+				postBatch(batch);
+				posted.addAndGet(batch.size());
+				return;
+			} catch (ApiException e) {
+				if (e.getStatusCode() != 400 && e.getStatusCode() != 404 && e.getStatusCode() != 501) {
+					failed.addAndGet(batch.size());
+					return;
+				}
+				batchSupported = false;
+			} catch (Exception e) {
+				failed.addAndGet(batch.size());
+				return;
+			}
+		}
+
+		for (Comment comment : batch) {
+			try {
+				postSingle(comment);
+				posted.incrementAndGet();
+			} catch (Exception e) {
+				failed.incrementAndGet();
+			}
+		}
+	}
+
+	private void postBatch(List<Comment> batch) throws Exception {
+		JSONArray body = new JSONArray();
+		for (Comment comment : batch) {
+			JSONObject item = new JSONObject();
+			item.element("resultID", comment.resultID);
+			item.element("content", comment.content);
+			item.element("type", "issue");
+			body.element(item);
+		}
+		MeteredCallable.call(channel, new ExecutionBuilder.PostCallable(apiBase + "/comments/batch", userName, apiKey, proxy, settings,
+				body.toString()), metrics);
+	}
+
+	private void postSingle(Comment comment) throws Exception {
+		String issueParams = ("content=" + URLEncoder.encode(comment.content, "UTF-8")) + "&type=issue";
+		MeteredCallable.call(channel, new ExecutionBuilder.PostCallable(apiBase + "/results/" + comment.resultID + "/comments?" + issueParams,
+				userName, apiKey, proxy, settings), metrics);
+	}
+}
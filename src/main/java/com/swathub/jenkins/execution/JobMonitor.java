@@ -0,0 +1,284 @@
+package com.swathub.jenkins.execution;
+
+import jenkins.model.Jenkins;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One poller per JVM for the jobs of all running builds.
+ *
+ * <p>
+ * Builds {@link #watch} their jobIDs instead of querying them on their own. On every
+ * cycle the monitor queries all watched jobs of a SWAT Hub workspace together, through
+ * <tt>/jobs/query?jobIDs=...</tt> when the server supports it and one
+ * <tt>/jobs/{jobID}/query</tt> per job otherwise, and hands the results to the builds
+ * waiting in {@link Watch#await(long, long)}. A job watched by several builds is queried
+ * once per cycle.
+ *
+ * <p>
+ * The queries are made from the JVM of the monitor, which is the master unless the
+ * execution loop runs on the agent. Builds that otherwise call SWAT Hub through their
+ * agent are then polled from the master, with its network route and proxy. On the master
+ * the connection settings and the proxy are read from the global configuration on every
+ * cycle, so a configuration change applies to workspaces that are already watched.
+ *
+ * <p>
+ * Builds either wait for the results of their jobs, or are called back when one arrives,
+ * so they don't hold a thread while their jobs run.
+ */
+public class JobMonitor {
+	public static final int DEFAULT_INTERVAL = 10;
+
+	private static final JobMonitor instance = new JobMonitor();
+
+	private final ConcurrentHashMap<String, Workspace> workspaces = new ConcurrentHashMap<String, Workspace>();
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SWAT Hub job monitor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private ScheduledFuture<?> task;
+	private int interval;
+
+	public static JobMonitor get() {
+		return instance;
+	}
+
+	/**
+	 * Starts polling, or changes the interval of the running poller.
+	 *
+	 * @param interval
+	 *      seconds between two poll cycles.
+	 */
+	public synchronized void start(int interval) {
+		interval = interval > 0 ? interval : DEFAULT_INTERVAL;
+		if (task != null && this.interval == interval) {
+			return;
+		}
+		if (task != null) {
+			task.cancel(false);
+		}
+		this.interval = interval;
+		task = timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				pollAll();
+			}
+		}, 0, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Registers interest in a job. Every call must be matched by {@link #unwatch(Watch, Runnable)}.
+	 *
+	 * @param onUpdate
+	 *      called on the monitor thread whenever a result of the job is delivered, may be null.
+	 */
+	public Watch watch(String apiBase, String userName, String apiKey, final HashMap<String, String> proxy, ClientSettings settings, String jobID,
+			Runnable onUpdate) {
+		synchronized (this) {
+			if (task == null) {
+				start(DEFAULT_INTERVAL);
+			}
+		}
+
+		String key = apiBase + "|" + userName + "|" + apiKey + "|" + proxy.toString();
+		Workspace workspace = workspaces.get(key);
+		if (workspace == null) {
+			Workspace created = new Workspace(apiBase, userName, apiKey, proxy, settings);
+			workspace = workspaces.putIfAbsent(key, created);
+			if (workspace == null) {
+				workspace = created;
+			}
+		}
+
+		synchronized (workspace) {
+			Watch watch = workspace.watches.get(jobID);
+			if (watch == null) {
+				watch = new Watch(workspace, jobID);
+				workspace.watches.put(jobID, watch);
+			}
+			watch.refs++;
+			if (onUpdate != null) {
+				watch.listeners.add(onUpdate);
+			}
+			return watch;
+		}
+	}
+
+	public void unwatch(Watch watch, Runnable onUpdate) {
+		synchronized (watch.workspace) {
+			if (onUpdate != null) {
+				watch.listeners.remove(onUpdate);
+			}
+			if (--watch.refs <= 0) {
+				watch.workspace.watches.remove(watch.jobID);
+			}
+		}
+	}
+
+	private void pollAll() {
+		Jenkins jenkins = Jenkins.getInstance();
+		ExecutionBuilder.DescriptorImpl descriptor = jenkins != null ? jenkins.getDescriptorByType(ExecutionBuilder.DescriptorImpl.class) : null;
+		for (Workspace workspace : workspaces.values()) {
+			if (descriptor != null) {
+				workspace.settings = descriptor.getClientSettings();
+				workspace.proxy = descriptor.getProxy();
+			}
+			List<Watch> watches;
+			synchronized (workspace) {
+				watches = new ArrayList<Watch>(workspace.watches.values());
+			}
+			if (!watches.isEmpty()) {
+				workspace.poll(watches);
+			}
+		}
+	}
+
+	private static class Workspace {
+		private final String apiBase;
+		private final String userName;
+		private final String apiKey;
+		// of the build that first watched the workspace, until the global configuration is read
+		private HashMap<String, String> proxy;
+		private ClientSettings settings;
+		private final HashMap<String, Watch> watches = new HashMap<String, Watch>();
+		private boolean batchSupported = true;
+
+		private Workspace(String apiBase, String userName, String apiKey, final HashMap<String, String> proxy, ClientSettings settings) {
+			this.apiBase = apiBase;
+			this.userName = userName;
+			this.apiKey = apiKey;
+			this.proxy = proxy;
+			this.settings = settings;
+		}
+
+		private void poll(List<Watch> watches) {
+			if (watches.size() > 1 && batchSupported) {
+				try {
+					StringBuilder jobIDs = new StringBuilder();
+					for (Watch watch : watches) {
+						jobIDs.append(jobIDs.length() == 0 ? "" : ",").append(watch.jobID);
+					}
+					Map<String, JobStatus> result = MeteredCallable.call(null, new ExecutionBuilder.BatchQueryCallable(
+							apiBase + "/jobs/query?jobIDs=" + URLEncoder.encode(jobIDs.toString(), "UTF-8"), userName, apiKey, proxy, settings),
+							Metrics.global());
+					for (Watch watch : watches) {
+						JobStatus status = result.get(watch.jobID);
+						if (status != null) {
+							watch.deliver(status, null);
+						} else {
+							pollSingle(watch);
+						}
+					}
+					return;
+				} catch (ApiException e) {
+					if (e.getStatusCode() != 400 && e.getStatusCode() != 404 && e.getStatusCode() != 501) {
+						for (Watch watch : watches) {
+							watch.deliver(null, e);
+						}
+						return;
+					}
+					batchSupported = false;
+				} catch (Exception e) {
+					for (Watch watch : watches) {
+						watch.deliver(null, e);
+					}
+					return;
+				}
+			}
+
+			for (Watch watch : watches) {
+				pollSingle(watch);
+			}
+		}
+
+		private void pollSingle(Watch watch) {
+			try {
+				JobStatus status = MeteredCallable.call(null, new ExecutionBuilder.GetCallable(apiBase + "/jobs/" + watch.jobID + "/query",
+						userName, apiKey, proxy, settings, QueryMode.FULL, null, 0, watch.etag), Metrics.global());
+				if (status.isNotModified()) {
+					// hands the latest result out again, the builds see no changes in it
+					watch.deliver(null, null);
+				} else {
+					watch.etag = status.getETag();
+					watch.deliver(status, null);
+				}
+			} catch (Exception e) {
+				watch.deliver(null, e);
+			}
+		}
+	}
+
+	/**
+	 * A build's registration for one job.
+	 */
+	public static class Watch {
+		private final Workspace workspace;
+		private final String jobID;
+		private int refs;
+		private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+		private JobStatus latest;
+		private Exception error;
+		private long version;
+		// only used by the monitor thread
+		private String etag;
+
+		private Watch(Workspace workspace, String jobID) {
+			this.workspace = workspace;
+			this.jobID = jobID;
+		}
+
+		private void deliver(JobStatus status, Exception error) {
+			synchronized (this) {
+				this.latest = status != null ? status : latest;
+				this.error = error;
+				version++;
+				notifyAll();
+			}
+			for (Runnable listener : listeners) {
+				listener.run();
+			}
+		}
+
+		/**
+		 * Returns the version of the latest delivered result.
+		 */
+		public synchronized long getVersion() {
+			return version;
+		}
+
+		/**
+		 * Waits until a result newer than <tt>seenVersion</tt> is delivered and returns it,
+		 * or returns null if none arrives within <tt>timeout</tt> milliseconds.
+		 *
+		 * @throws Exception
+		 *      if the latest poll of this job failed.
+		 */
+		public synchronized JobStatus await(long seenVersion, long timeout) throws Exception {
+			long deadline = System.currentTimeMillis() + timeout;
+			while (version <= seenVersion) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return null;
+				}
+				wait(remaining);
+			}
+			if (error != null) {
+				throw error;
+			}
+			return latest;
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package com.swathub.jenkins.execution;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact result of a <tt>/jobs/{jobID}/query</tt> call.
+ *
+ * <p>
+ * Parsed straight from the response stream with {@link #parse(InputStream)}, keeping
+ * only the fields the builder uses, so neither the raw response text nor a full
+ * json-lib tree is held in memory for large test sets.
+ */
+public class JobStatus implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private String jobID;
+	private String name = "";
+	private String status = "";
+	private String revision;
+	private boolean delta;
+	private String etag;
+	private boolean notModified;
+	private final ArrayList<Task> tasks = new ArrayList<Task>();
+
+	/**
+	 * Returns the answer to a conditional query for a job that didn't change.
+	 */
+	public static JobStatus notModified(String etag) {
+		JobStatus status = new JobStatus();
+		status.etag = etag;
+		status.notModified = true;
+		return status;
+	}
+
+	public String getJobID() {
+		return jobID;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	public List<Task> getTasks() {
+		return tasks;
+	}
+
+	/**
+	 * Returns the server's revision token for this state of the job, or null if the
+	 * server doesn't support delta queries.
+	 */
+	public String getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Returns true if {@link #getTasks()} only holds the tasks changed since the requested revision.
+	 */
+	public boolean isDelta() {
+		return delta;
+	}
+
+	/**
+	 * Returns the <tt>ETag</tt> of the response, to make the next query conditional, or null.
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	void setETag(String etag) {
+		this.etag = etag;
+	}
+
+	/**
+	 * Returns true if the server answered 304 to a conditional query. Such a status holds no job data.
+	 */
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	public boolean isCompleted() {
+		return status.equals("stopped") || status.equals("finished");
+	}
+
+	public static class Task implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private String taskID;
+		private String status = "";
+		private String description = "";
+		private double duration;
+		private String error;
+		private String resultID;
+		private ArrayList<String> tags;
+
+		public String getTaskID() {
+			return taskID;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+
+		public double getDuration() {
+			return duration;
+		}
+
+		public String getError() {
+			return error;
+		}
+
+		public boolean hasError() {
+			return error != null;
+		}
+
+		public String getResultID() {
+			return resultID;
+		}
+
+		/**
+		 * Returns the scenario tags of the task, empty if the server doesn't send them.
+		 */
+		public List<String> getTags() {
+			return tags != null ? tags : Collections.<String>emptyList();
+		}
+
+		public boolean isCompleted() {
+			return status.equals("stopped") || status.equals("finished") || status.equals("failed");
+		}
+
+		/**
+		 * Returns true if the task is being executed right now, as opposed to waiting for a node.
+		 */
+		public boolean isRunning() {
+			return status.equals("running");
+		}
+	}
+
+	/**
+	 * Reads a job query response from <tt>in</tt>. The stream is not closed.
+	 */
+	public static JobStatus parse(InputStream in) throws IOException {
+		return parseJob(new JsonReader(new InputStreamReader(in, "UTF-8")));
+	}
+
+	/**
+	 * Reads a multi-job query response of the form <tt>{"jobs": [{"jobID": ..., ...}, ...]}</tt>
+	 * from <tt>in</tt>, keyed by jobID. The stream is not closed.
+	 */
+	public static Map<String, JobStatus> parseBatch(InputStream in) throws IOException {
+		HashMap<String, JobStatus> ret = new HashMap<String, JobStatus>();
+		JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if (reader.nextName().equals("jobs") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					JobStatus job = parseJob(reader);
+					if (job.jobID != null) {
+						ret.put(job.jobID, job);
+					}
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		return ret;
+	}
+
+	private static JobStatus parseJob(JsonReader reader) throws IOException {
+		JobStatus ret = new JobStatus();
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals("jobID")) {
+				ret.jobID = nextString(reader, null);
+			} else if (field.equals("name")) {
+				ret.name = nextString(reader, "");
+			} else if (field.equals("status")) {
+				ret.status = nextString(reader, "");
+			} else if (field.equals("revision")) {
+				ret.revision = nextString(reader, null);
+			} else if (field.equals("delta")) {
+				ret.delta = "true".equals(nextString(reader, null));
+			} else if (field.equals("tasks") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					ret.tasks.add(parseTask(reader));
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		return ret;
+	}
+
+	private static Task parseTask(JsonReader reader) throws IOException {
+		Task task = new Task();
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String field = reader.nextName();
+			if (field.equals("taskID")) {
+				task.taskID = nextString(reader, null);
+			} else if (field.equals("status")) {
+				task.status = nextString(reader, "");
+			} else if (field.equals("description")) {
+				task.description = nextString(reader, "");
+			} else if (field.equals("duration")) {
+				String duration = nextString(reader, null);
+				task.duration = duration == null ? 0 : Double.parseDouble(duration);
+			} else if (field.equals("error")) {
+				task.error = nextString(reader, null);
+			} else if (field.equals("resultID")) {
+				task.resultID = nextString(reader, null);
+			} else if (field.equals("tags")) {
+				task.tags = nextStrings(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		return task;
+	}
+
+	/**
+	 * Reads an array of strings, or a single comma-separated string.
+	 */
+	private static ArrayList<String> nextStrings(JsonReader reader) throws IOException {
+		ArrayList<String> ret = new ArrayList<String>();
+		if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+			reader.beginArray();
+			while (reader.hasNext()) {
+				String value = nextString(reader, null);
+				if (value != null && !value.trim().isEmpty()) {
+					ret.add(value.trim());
+				}
+			}
+			reader.endArray();
+		} else {
+			String value = nextString(reader, null);
+			if (value != null) {
+				for (String item : value.split(",")) {
+					if (!item.trim().isEmpty()) {
+						ret.add(item.trim());
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static String nextString(JsonReader reader, String defaultValue) throws IOException {
+		JsonToken token = reader.peek();
+		if (token == JsonToken.NULL) {
+			reader.nextNull();
+			return defaultValue;
+		} else if (token == JsonToken.BOOLEAN) {
+			return String.valueOf(reader.nextBoolean());
+		} else if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+			return reader.nextString();
+		}
+		reader.skipValue();
+		return defaultValue;
+	}
+}
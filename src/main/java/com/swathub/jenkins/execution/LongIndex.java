@@ -0,0 +1,94 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash index from <tt>long</tt> keys to consecutive slot numbers, so
+ * per-key values can be kept in plain parallel arrays without boxing.
+ */
+public class LongIndex implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private long[] keys;
+	private int[] slots;
+	private int size;
+
+	public LongIndex(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		slots = new int[capacity];
+		Arrays.fill(slots, -1);
+	}
+
+	/**
+	 * Returns the slot of <tt>key</tt>, or -1 if it isn't indexed.
+	 */
+	public int get(long key) {
+		int mask = keys.length - 1;
+		for (int i = mix(key) & mask; slots[i] != -1; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return slots[i];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot of <tt>key</tt>, adding it with the next free slot if needed.
+	 */
+	public int add(long key) {
+		int slot = get(key);
+		if (slot != -1) {
+			return slot;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			grow();
+		}
+		insert(key, size);
+		return size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public LongIndex copy() {
+		LongIndex ret = new LongIndex(0);
+		ret.keys = keys.clone();
+		ret.slots = slots.clone();
+		ret.size = size;
+		return ret;
+	}
+
+	private void insert(long key, int slot) {
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		while (slots[i] != -1) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		slots[i] = slot;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new long[oldKeys.length * 2];
+		slots = new int[oldSlots.length * 2];
+		Arrays.fill(slots, -1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldSlots[i] != -1) {
+				insert(oldKeys[i], oldSlots[i]);
+			}
+		}
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
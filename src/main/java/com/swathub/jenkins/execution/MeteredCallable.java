@@ -0,0 +1,68 @@
+package com.swathub.jenkins.execution;
+
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import org.jenkinsci.remoting.RoleChecker;
+
+import java.io.Serializable;
+
+/**
+ * Runs an API callable with a {@link CallSample} bound to its thread and sends the sample
+ * back together with the result, or with the exception, of the callable.
+ */
+public class MeteredCallable<V> implements Callable<MeteredCallable.Result<V>, Exception> {
+	private static final long serialVersionUID = 1L;
+
+	private final Callable<V, Exception> callable;
+
+	public static class Result<V> implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final V value;
+		private final Exception error;
+		private final CallSample sample;
+
+		private Result(V value, Exception error, CallSample sample) {
+			this.value = value;
+			this.error = error;
+			this.sample = sample;
+		}
+	}
+
+	public MeteredCallable(Callable<V, Exception> callable) {
+		this.callable = callable;
+	}
+
+	/**
+	 * Makes the call through <tt>channel</tt>, or in this JVM if it is null, and records it
+	 * in <tt>metrics</tt> if not null.
+	 */
+	public static <V> V call(VirtualChannel channel, Callable<V, Exception> callable, Metrics metrics) throws Exception {
+		MeteredCallable<V> metered = new MeteredCallable<V>(callable);
+		long start = System.nanoTime();
+		Result<V> result = channel != null ? channel.call(metered) : metered.call();
+		if (metrics != null) {
+			metrics.record(result.sample, System.nanoTime() - start);
+		}
+		if (result.error != null) {
+			throw result.error;
+		}
+		return result.value;
+	}
+
+	public Result<V> call() throws Exception {
+		CallSample.start();
+		V value = null;
+		Exception error = null;
+		try {
+			value = callable.call();
+		} catch (Exception e) {
+			error = e;
+		}
+		return new Result<V>(value, error, CallSample.finish());
+	}
+
+	public void checkRoles(RoleChecker roleChecker) throws SecurityException {
+
+	}
+}
@@ -0,0 +1,157 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters of the SWAT Hub API calls and poll cycles, of one build or of
+ * the whole Jenkins instance ({@link #global()}).
+ *
+ * <p>
+ * All collectors are atomic counters and {@link Histogram}s, so recording never blocks
+ * the poll loop. Times are in milliseconds, except the JSON parse time in microseconds.
+ */
+public class Metrics {
+	private static final Metrics global = new Metrics();
+
+	private final Histogram apiLatency = new Histogram();
+	private final Histogram remotingTime = new Histogram();
+	private final Histogram parseTime = new Histogram();
+	private final Histogram pollCycle = new Histogram();
+	private final Histogram endToEnd = new Histogram();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final ConcurrentHashMap<Integer, AtomicLong> statusCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	public static Metrics global() {
+		return global;
+	}
+
+	/**
+	 * Records the requests of one callable.
+	 *
+	 * @param wallNanos
+	 *      the time of the whole call as seen by the caller, including the channel.
+	 */
+	public void record(CallSample sample, long wallNanos) {
+		for (long[] request : sample.getRequests()) {
+			apiLatency.record(request[1] / 1000000);
+			count(statusCounts, (int) request[0], 1);
+		}
+		bytesOut.addAndGet(sample.getBytesOut());
+		bytesIn.addAndGet(sample.getBytesIn());
+		if (sample.getParseNanos() > 0) {
+			parseTime.record(sample.getParseNanos() / 1000);
+		}
+		remotingTime.record(Math.max(wallNanos - sample.getElapsedNanos(), 0) / 1000000);
+	}
+
+	public void pollCycle(long millis) {
+		pollCycle.record(millis);
+	}
+
+	/**
+	 * Records the time from submitting a job to seeing it completed.
+	 */
+	public void jobCompleted(long millis) {
+		endToEnd.record(millis);
+	}
+
+	/**
+	 * Adds the values of a snapshot, e.g. of a build, to these metrics.
+	 */
+	public void add(Snapshot snapshot) {
+		apiLatency.add(snapshot.histograms.get(Snapshot.API_LATENCY));
+		remotingTime.add(snapshot.histograms.get(Snapshot.REMOTING_TIME));
+		parseTime.add(snapshot.histograms.get(Snapshot.PARSE_TIME));
+		pollCycle.add(snapshot.histograms.get(Snapshot.POLL_CYCLE));
+		endToEnd.add(snapshot.histograms.get(Snapshot.END_TO_END));
+		bytesOut.addAndGet(snapshot.bytesOut);
+		bytesIn.addAndGet(snapshot.bytesIn);
+		for (Map.Entry<Integer, Long> entry : snapshot.statusCounts.entrySet()) {
+			count(statusCounts, entry.getKey(), entry.getValue());
+		}
+	}
+
+	public Snapshot snapshot() {
+		Snapshot snapshot = new Snapshot();
+		snapshot.histograms.put(Snapshot.API_LATENCY, apiLatency.snapshot());
+		snapshot.histograms.put(Snapshot.REMOTING_TIME, remotingTime.snapshot());
+		snapshot.histograms.put(Snapshot.PARSE_TIME, parseTime.snapshot());
+		snapshot.histograms.put(Snapshot.POLL_CYCLE, pollCycle.snapshot());
+		snapshot.histograms.put(Snapshot.END_TO_END, endToEnd.snapshot());
+		snapshot.bytesOut = bytesOut.get();
+		snapshot.bytesIn = bytesIn.get();
+		for (Map.Entry<Integer, AtomicLong> entry : statusCounts.entrySet()) {
+			snapshot.statusCounts.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	private static void count(ConcurrentHashMap<Integer, AtomicLong> counts, int key, long delta) {
+		AtomicLong counter = counts.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counts.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.addAndGet(delta);
+	}
+
+	/**
+	 * The values of the metrics at one point in time.
+	 */
+	public static class Snapshot implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public static final String API_LATENCY = "API call latency (ms)";
+		public static final String REMOTING_TIME = "Remoting overhead per call (ms)";
+		public static final String PARSE_TIME = "Response read and parse time (us)";
+		public static final String POLL_CYCLE = "Poll cycle time (ms)";
+		public static final String END_TO_END = "Job submit to finish (ms)";
+
+		private final LinkedHashMap<String, Histogram.Snapshot> histograms = new LinkedHashMap<String, Histogram.Snapshot>();
+		private final TreeMap<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+		private long bytesOut;
+		private long bytesIn;
+
+		public Map<String, Histogram.Snapshot> getHistograms() {
+			return histograms;
+		}
+
+		/**
+		 * Returns the number of responses per HTTP status; 0 counts requests without a response.
+		 */
+		public Map<Integer, Long> getStatusCounts() {
+			return statusCounts;
+		}
+
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		public String toText() {
+			StringBuilder text = new StringBuilder();
+			for (Map.Entry<String, Histogram.Snapshot> entry : histograms.entrySet()) {
+				text.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+			}
+			text.append("Bytes sent: ").append(bytesOut).append("\n");
+			text.append("Bytes received (decoded): ").append(bytesIn).append("\n");
+			for (Map.Entry<Integer, Long> entry : statusCounts.entrySet()) {
+				text.append("HTTP ").append(entry.getKey() == 0 ? "no response" : String.valueOf(entry.getKey()))
+						.append(": ").append(entry.getValue()).append("\n");
+			}
+			return text.toString();
+		}
+	}
+}
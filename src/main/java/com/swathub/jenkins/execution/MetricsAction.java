@@ -0,0 +1,41 @@
+package com.swathub.jenkins.execution;
+
+import hudson.model.Action;
+
+/**
+ * Shows the SWAT Hub API call and poll cycle metrics of a build. A build has one action,
+ * which adds up the metrics of all its SWAT Hub steps.
+ */
+public class MetricsAction implements Action {
+	private Metrics.Snapshot metrics;
+
+	public MetricsAction(Metrics.Snapshot metrics) {
+		this.metrics = metrics;
+	}
+
+	public synchronized Metrics.Snapshot getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Adds the metrics of another step of the build.
+	 */
+	public synchronized void add(Metrics.Snapshot snapshot) {
+		Metrics sum = new Metrics();
+		sum.add(metrics);
+		sum.add(snapshot);
+		metrics = sum.snapshot();
+	}
+
+	public String getIconFileName() {
+		return "graph.png";
+	}
+
+	public String getDisplayName() {
+		return "SWAT Hub Metrics";
+	}
+
+	public String getUrlName() {
+		return "swathub-metrics";
+	}
+}
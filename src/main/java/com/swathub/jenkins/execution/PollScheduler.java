@@ -0,0 +1,143 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+
+/**
+ * Decides how long to wait between two job queries.
+ *
+ * <p>
+ * Polls at the minimum interval while tasks are completing, backs off by
+ * <tt>backoffFactor</tt> up to the maximum interval while nothing changes, and
+ * caps the interval more tightly as the completed/total ratio approaches 1 so
+ * the end of the job is noticed quickly. With a {@link DurationHistory}, the runner
+ * can instead aim the next poll at the predicted completion of the next task.
+ */
+public class PollScheduler implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_MIN_INTERVAL = 2;
+	public static final int DEFAULT_MAX_INTERVAL = 30;
+	public static final double DEFAULT_BACKOFF_FACTOR = 1.5;
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final double backoffFactor;
+
+	private long interval;
+	private int lastCompleted = -1;
+	private int polls;
+	private long totalWait;
+	private boolean woken;
+	private transient volatile Runnable onWake;
+
+	/**
+	 * @param minInterval
+	 *      shortest wait between polls, in seconds.
+	 * @param maxInterval
+	 *      longest wait between polls, in seconds.
+	 * @param backoffFactor
+	 *      multiplier applied to the interval after a poll without progress.
+	 */
+	public PollScheduler(int minInterval, int maxInterval, double backoffFactor) {
+		this.minInterval = Math.max(minInterval, 1) * 1000L;
+		this.maxInterval = Math.max(maxInterval * 1000L, this.minInterval);
+		this.backoffFactor = backoffFactor >= 1 ? backoffFactor : DEFAULT_BACKOFF_FACTOR;
+		this.interval = this.minInterval;
+	}
+
+	/**
+	 * Records the progress seen by the latest poll and computes the wait before the next one.
+	 */
+	public void polled(int completed, int total) {
+		polls++;
+
+		if (completed > lastCompleted) {
+			interval = minInterval;
+		} else {
+			interval = Math.min((long) (interval * backoffFactor), maxInterval);
+		}
+		lastCompleted = completed;
+
+		if (total > 0) {
+			double ratio = (double) completed / total;
+			long cap = minInterval + (long) ((maxInterval - minInterval) * (1 - ratio));
+			interval = Math.max(Math.min(interval, cap), minInterval);
+		}
+	}
+
+	/**
+	 * Moves the next poll to the time the next completion is predicted, within the
+	 * minimum and maximum intervals. Called after {@link #polled(int, int)}.
+	 *
+	 * @param millis
+	 *      the expected time until the next task completes.
+	 */
+	public void expect(long millis) {
+		interval = Math.max(Math.min(millis, maxInterval), minInterval);
+	}
+
+	/**
+	 * Polls at the maximum interval only, as a safety net for jobs that report their
+	 * progress through callbacks. Called after {@link #polled(int, int)}.
+	 */
+	public void idle() {
+		interval = maxInterval;
+	}
+
+	/**
+	 * Sleeps until the next poll is due, or until {@link #wake()} is called.
+	 */
+	public synchronized void await() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		long deadline = start + interval;
+		while (!woken) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			wait(remaining);
+		}
+		woken = false;
+		totalWait += System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Ends the current or next {@link #await()} right away.
+	 */
+	public void wake() {
+		synchronized (this) {
+			woken = true;
+			notifyAll();
+		}
+		Runnable l_onWake = onWake;
+		if (l_onWake != null) {
+			l_onWake.run();
+		}
+	}
+
+	/**
+	 * Sets a callback that is called on every {@link #wake()}, for a caller that doesn't wait in {@link #await()}.
+	 */
+	public void setOnWake(Runnable onWake) {
+		this.onWake = onWake;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait before the next poll.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	public int getPolls() {
+		return polls;
+	}
+
+	public long getTotalWait() {
+		return totalWait;
+	}
+
+	public String getSummary() {
+		return "Polled SWAT Hub " + polls + " times, waited " + (totalWait / 1000) + "s in total";
+	}
+}
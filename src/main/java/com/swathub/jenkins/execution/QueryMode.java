@@ -0,0 +1,37 @@
+package com.swathub.jenkins.execution;
+
+/**
+ * How the builder queries the progress of a job.
+ *
+ * <p>
+ * In {@link #DELTA} mode the query sends <tt>since=&lt;revision&gt;</tt> with the revision
+ * returned by the previous query, and the server may answer with only the tasks changed
+ * since then (<tt>"delta": true</tt>). {@link #LONG_POLL} additionally sends
+ * <tt>wait=&lt;seconds&gt;</tt>, asking the server to hold the response until something
+ * changes. Servers that don't return a <tt>revision</tt>, or reject the parameters, are
+ * queried in {@link #FULL} mode for the rest of the build.
+ */
+public enum QueryMode {
+	FULL("Full task list"),
+	DELTA("Changed tasks only"),
+	LONG_POLL("Changed tasks only, wait for changes");
+
+	private final String displayName;
+
+	QueryMode(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public static QueryMode fromName(String name) {
+		for (QueryMode mode : values()) {
+			if (mode.name().equals(name)) {
+				return mode;
+			}
+		}
+		return FULL;
+	}
+}
@@ -0,0 +1,69 @@
+package com.swathub.jenkins.execution;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket of one SWAT Hub host, for the API calls made to it from this JVM.
+ *
+ * <p>
+ * The limit applies per JVM: the master and every agent whose builds call SWAT Hub take
+ * their own tokens, so a host called from several agents can see several times the
+ * configured rate.
+ *
+ * <p>
+ * The bucket is kept as the single time at which it will be full again, so taking a
+ * token is one compare-and-set and never blocks other callers; a caller that finds the
+ * bucket empty reserves the next token and sleeps until it is due. The bucket holds one
+ * second worth of calls, so short bursts pass unthrottled.
+ */
+public class RateLimiter {
+	private static final ConcurrentHashMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+
+	private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Returns the bucket of the host of <tt>uri</tt>.
+	 */
+	public static RateLimiter get(URI uri) {
+		String domain = uri.getScheme() + "://" + uri.getHost() + (uri.getPort() != -1 ? ":" + uri.getPort() : "");
+		RateLimiter limiter = limiters.get(domain);
+		if (limiter == null) {
+			RateLimiter created = new RateLimiter();
+			limiter = limiters.putIfAbsent(domain, created);
+			if (limiter == null) {
+				limiter = created;
+			}
+		}
+		return limiter;
+	}
+
+	/**
+	 * Takes a token, waiting for one if the bucket is empty.
+	 *
+	 * @param rate
+	 *      calls per second, 0 or less for no limit.
+	 */
+	public void acquire(double rate) throws InterruptedException {
+		if (rate <= 0) {
+			return;
+		}
+		long interval = (long) (1000000000L / rate);
+		long capacity = interval * Math.max((long) rate, 1);
+
+		while (true) {
+			long now = System.nanoTime();
+			long current = fullAt.get();
+			// a bucket that was full before now holds no more than its capacity
+			long next = Math.max(current, now) + interval;
+			if (fullAt.compareAndSet(current, next)) {
+				long wait = next - capacity - now;
+				if (wait > 0) {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,623 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary archive of the task results of all builds of a Jenkins job, read from their
+ * <tt>swat_result.xml</tt> reports.
+ *
+ * <p>
+ * <tt>results.bin</tt> holds one fixed-size record per task and build: the case key, its
+ * duration and its status. <tt>builds.bin</tt> indexes it by build, with the offset and
+ * number of the build's records and the build's totals, so the trend needs no result
+ * records at all and a window of recent builds is a single contiguous range. Cases are
+ * keyed by the {@link DurationHistory#hash(String) hash} of their description, as task
+ * IDs change from run to run; <tt>names.bin</tt> maps the keys back to descriptions,
+ * each stored as its UTF-8 bytes after an <tt>int</tt> length.
+ *
+ * <p>
+ * Case statistics are computed by one sequential pass over the memory-mapped range of
+ * the requested builds into a {@link LongIndex} with parallel arrays, and kept until the
+ * next build is appended.
+ *
+ * <p>
+ * Archives are cached per job, and evicted when the job is deleted or renamed. The cached
+ * index is reloaded whenever <tt>builds.bin</tt> changed on disk, and the records and
+ * names of deleted builds are dropped by {@link #prune(int, int)}.
+ */
+public class ResultArchive {
+	public static final byte PASSED = 0;
+	public static final byte FAILED = 1;
+	public static final byte STOPPED = 2;
+	public static final byte SKIPPED = 3;
+
+	// key, duration, status
+	private static final int RECORD_SIZE = 8 + 4 + 1;
+	// number, offset, count, passed, failed, skipped, time, timestamp
+	private static final int BUILD_SIZE = 4 + 8 + 4 + 4 + 4 + 4 + 8 + 8;
+	private static final int MAP_CHUNK = 1 << 30;
+
+	private static final ConcurrentHashMap<String, ResultArchive> archives = new ConcurrentHashMap<String, ResultArchive>();
+
+	private final File dir;
+	private final File resultsFile;
+	private final File buildsFile;
+	private final File namesFile;
+	private List<Build> builds;
+	private HashMap<Long, String> names;
+	private long namesLength;
+	private CaseStats cachedStats;
+	private long indexLength;
+	private long indexModified;
+
+	private ResultArchive(File dir) {
+		this.dir = dir;
+		this.resultsFile = new File(dir, "results.bin");
+		this.buildsFile = new File(dir, "builds.bin");
+		this.namesFile = new File(dir, "names.bin");
+	}
+
+	/**
+	 * Returns the archive of the job named <tt>jobName</tt> in <tt>dir</tt>, usually
+	 * <tt>swathub-archive</tt> in the job's root directory.
+	 */
+	public static synchronized ResultArchive get(String jobName, File dir) {
+		ResultArchive archive = archives.get(jobName);
+		if (archive == null || !archive.dir.equals(dir)) {
+			archive = new ResultArchive(dir);
+			archives.put(jobName, archive);
+		}
+		return archive;
+	}
+
+	/**
+	 * Drops the cached archives of a job and of the jobs inside it, e.g. when it was deleted or renamed.
+	 */
+	public static void evict(String jobName) {
+		for (String key : archives.keySet()) {
+			if (key.equals(jobName) || key.startsWith(jobName + "/")) {
+				archives.remove(key);
+			}
+		}
+	}
+
+	public boolean exists() {
+		return buildsFile.exists();
+	}
+
+	/**
+	 * The totals of one archived build.
+	 */
+	public static class Build {
+		private final int number;
+		private final long offset;
+		private final int count;
+		private final int passed;
+		private final int failed;
+		private final int skipped;
+		private final double time;
+		private final long timestamp;
+
+		private Build(int number, long offset, int count, int passed, int failed, int skipped, double time, long timestamp) {
+			this.number = number;
+			this.offset = offset;
+			this.count = count;
+			this.passed = passed;
+			this.failed = failed;
+			this.skipped = skipped;
+			this.time = time;
+			this.timestamp = timestamp;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public int getPassed() {
+			return passed;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public int getSkipped() {
+			return skipped;
+		}
+
+		public double getTime() {
+			return time;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	/**
+	 * The statistics of one case over a window of builds.
+	 */
+	public static class Case {
+		private final String name;
+		private final int runs;
+		private final int failures;
+		private final int flips;
+		private final double meanTime;
+		private final double maxTime;
+
+		private Case(String name, int runs, int failures, int flips, double meanTime, double maxTime) {
+			this.name = name;
+			this.runs = runs;
+			this.failures = failures;
+			this.flips = flips;
+			this.meanTime = meanTime;
+			this.maxTime = maxTime;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getRuns() {
+			return runs;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Returns how often the case changed between passed and failed from one run to the next.
+		 */
+		public int getFlips() {
+			return flips;
+		}
+
+		public double getMeanTime() {
+			return meanTime;
+		}
+
+		public double getMaxTime() {
+			return maxTime;
+		}
+	}
+
+	/**
+	 * Appends the test cases of the report of a build, streamed from <tt>report</tt>. Tasks
+	 * that never completed are archived as skipped.
+	 */
+	public synchronized void append(int buildNumber, FilePath report) throws IOException, InterruptedException {
+		loadBuilds();
+		loadNames();
+		resultsFile.getParentFile().mkdirs();
+
+		// drops records of an append that was cut off before its build was indexed
+		Build last = builds.isEmpty() ? null : builds.get(builds.size() - 1);
+		long offset = last != null ? last.offset + (long) last.count * RECORD_SIZE : 0;
+		truncate(resultsFile, offset);
+		truncate(buildsFile, (long) builds.size() * BUILD_SIZE);
+		truncate(namesFile, namesLength);
+
+		int count = 0, passed = 0, failed = 0, skipped = 0;
+		double time = 0;
+		InputStream in = report.read();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(resultsFile, true)));
+		DataOutputStream namesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesFile, true)));
+		try {
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in, "utf-8");
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("testcase")) {
+					continue;
+				}
+				String name = reader.getAttributeValue(null, "name");
+				String l_time = reader.getAttributeValue(null, "time");
+				double duration = l_time != null ? Double.parseDouble(l_time) : 0;
+				if (name == null) {
+					continue;
+				}
+
+				long key = DurationHistory.hash(name);
+				if (!names.containsKey(key)) {
+					names.put(key, name);
+					namesLength += writeName(namesOut, key, name);
+				}
+				byte status = getStatus(reader.getAttributeValue(null, "status"));
+				out.writeLong(key);
+				out.writeFloat((float) duration);
+				out.writeByte(status);
+				count++;
+				passed += status == PASSED ? 1 : 0;
+				failed += status == FAILED ? 1 : 0;
+				skipped += status == SKIPPED || status == STOPPED ? 1 : 0;
+				time += duration;
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		} catch (NumberFormatException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			in.close();
+			out.close();
+			namesOut.close();
+		}
+
+		Build build = new Build(buildNumber, offset, count, passed, failed, skipped, time, System.currentTimeMillis());
+		DataOutputStream buildsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(buildsFile, true)));
+		try {
+			write(buildsOut, build);
+		} finally {
+			buildsOut.close();
+		}
+		builds.add(build);
+		cachedStats = null;
+		indexed();
+	}
+
+	/**
+	 * Drops the records of the builds numbered below <tt>firstBuild</tt>, which the job's
+	 * build discarder deleted, and of all but the latest <tt>maxBuilds</tt> builds, and the
+	 * names of the cases that are left without records. The files are only rewritten once
+	 * at least a quarter of the archived builds can be dropped.
+	 */
+	public synchronized void prune(int firstBuild, int maxBuilds) throws IOException {
+		loadBuilds();
+		loadNames();
+		int keep = Math.max(builds.size() - maxBuilds, 0);
+		while (keep < builds.size() && builds.get(keep).number < firstBuild) {
+			keep++;
+		}
+		if (keep == 0 || keep < builds.size() / 4) {
+			return;
+		}
+
+		Build last = builds.get(builds.size() - 1);
+		long end = last.offset + (long) last.count * RECORD_SIZE;
+		long start = keep < builds.size() ? builds.get(keep).offset : end;
+		List<Build> kept = new ArrayList<Build>();
+		for (Build build : builds.subList(keep, builds.size())) {
+			kept.add(new Build(build.number, build.offset - start, build.count, build.passed, build.failed, build.skipped,
+					build.time, build.timestamp));
+		}
+
+		File resultsTmp = new File(dir, "results.bin.tmp");
+		File buildsTmp = new File(dir, "builds.bin.tmp");
+		FileInputStream in = new FileInputStream(resultsFile);
+		FileOutputStream out = new FileOutputStream(resultsTmp);
+		try {
+			FileChannel channel = in.getChannel();
+			for (long position = start; position < end; ) {
+				position += channel.transferTo(position, end - position, out.getChannel());
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		DataOutputStream buildsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(buildsTmp)));
+		try {
+			for (Build build : kept) {
+				write(buildsOut, build);
+			}
+		} finally {
+			buildsOut.close();
+		}
+		replace(resultsTmp, resultsFile);
+		replace(buildsTmp, buildsFile);
+		builds = kept;
+		cachedStats = null;
+		indexed();
+
+		CaseStats left = scan(builds.size());
+		File namesTmp = new File(dir, "names.bin.tmp");
+		HashMap<Long, String> keptNames = new HashMap<Long, String>();
+		long keptLength = 0;
+		DataOutputStream namesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesTmp)));
+		try {
+			for (Map.Entry<Long, String> entry : names.entrySet()) {
+				if (left.index.get(entry.getKey()) != -1) {
+					keptNames.put(entry.getKey(), entry.getValue());
+					keptLength += writeName(namesOut, entry.getKey(), entry.getValue());
+				}
+			}
+		} finally {
+			namesOut.close();
+		}
+		replace(namesTmp, namesFile);
+		names = keptNames;
+		namesLength = keptLength;
+	}
+
+	/**
+	 * Returns the totals of the latest <tt>maxBuilds</tt> builds, newest first.
+	 */
+	public synchronized List<Build> getTrend(int maxBuilds) throws IOException {
+		loadBuilds();
+		List<Build> ret = new ArrayList<Build>(builds.subList(Math.max(builds.size() - maxBuilds, 0), builds.size()));
+		Collections.reverse(ret);
+		return ret;
+	}
+
+	/**
+	 * Returns the cases that changed between passed and failed most often in the latest
+	 * <tt>maxBuilds</tt> builds.
+	 */
+	public List<Case> getFlaky(int maxBuilds, int limit) throws IOException {
+		List<Case> ret = new ArrayList<Case>();
+		for (Case c : getCases(maxBuilds)) {
+			if (c.flips > 0) {
+				ret.add(c);
+			}
+		}
+		Collections.sort(ret, new Comparator<Case>() {
+			public int compare(Case a, Case b) {
+				int cmp = b.flips - a.flips;
+				return cmp != 0 ? cmp : b.failures - a.failures;
+			}
+		});
+		return ret.subList(0, Math.min(limit, ret.size()));
+	}
+
+	/**
+	 * Returns the cases with the longest mean duration in the latest <tt>maxBuilds</tt> builds.
+	 */
+	public List<Case> getSlowest(int maxBuilds, int limit) throws IOException {
+		List<Case> ret = getCases(maxBuilds);
+		Collections.sort(ret, new Comparator<Case>() {
+			public int compare(Case a, Case b) {
+				return Double.compare(b.meanTime, a.meanTime);
+			}
+		});
+		return ret.subList(0, Math.min(limit, ret.size()));
+	}
+
+	private synchronized List<Case> getCases(int maxBuilds) throws IOException {
+		loadBuilds();
+		loadNames();
+		if (cachedStats == null || cachedStats.maxBuilds != maxBuilds) {
+			cachedStats = scan(maxBuilds);
+		}
+
+		CaseStats stats = cachedStats;
+		List<Case> ret = new ArrayList<Case>(stats.index.size());
+		for (int slot = 0; slot < stats.index.size(); slot++) {
+			if (stats.runs[slot] == 0) {
+				// only seen as skipped
+				continue;
+			}
+			String name = names.get(stats.keys[slot]);
+			ret.add(new Case(name != null ? name : Long.toHexString(stats.keys[slot]), stats.runs[slot], stats.failures[slot],
+					stats.flips[slot], stats.totalTime[slot] / stats.runs[slot], stats.maxTime[slot]));
+		}
+		return ret;
+	}
+
+	private static class CaseStats {
+		private final int maxBuilds;
+		private final LongIndex index = new LongIndex(1024);
+		private long[] keys = new long[1024];
+		private int[] runs = new int[1024];
+		private int[] failures = new int[1024];
+		private int[] flips = new int[1024];
+		private byte[] lastStatus = new byte[1024];
+		private double[] totalTime = new double[1024];
+		private float[] maxTime = new float[1024];
+
+		private CaseStats(int maxBuilds) {
+			this.maxBuilds = maxBuilds;
+		}
+
+		private void add(long key, float duration, byte status) {
+			int slot = index.add(key);
+			if (slot >= keys.length) {
+				int length = keys.length * 2;
+				keys = Arrays.copyOf(keys, length);
+				runs = Arrays.copyOf(runs, length);
+				failures = Arrays.copyOf(failures, length);
+				flips = Arrays.copyOf(flips, length);
+				lastStatus = Arrays.copyOf(lastStatus, length);
+				totalTime = Arrays.copyOf(totalTime, length);
+				maxTime = Arrays.copyOf(maxTime, length);
+			}
+			keys[slot] = key;
+			if (status != PASSED && status != FAILED) {
+				// skipped and stopped runs say nothing about the case
+				return;
+			}
+
+			if (runs[slot] > 0 && lastStatus[slot] != status) {
+				flips[slot]++;
+			}
+			lastStatus[slot] = status;
+			runs[slot]++;
+			failures[slot] += status == FAILED ? 1 : 0;
+			totalTime[slot] += duration;
+			maxTime[slot] = Math.max(maxTime[slot], duration);
+		}
+	}
+
+	private CaseStats scan(int maxBuilds) throws IOException {
+		CaseStats stats = new CaseStats(maxBuilds);
+		if (builds.isEmpty()) {
+			return stats;
+		}
+		Build first = builds.get(Math.max(builds.size() - maxBuilds, 0));
+		Build last = builds.get(builds.size() - 1);
+		long start = first.offset;
+		long end = last.offset + (long) last.count * RECORD_SIZE;
+
+		RandomAccessFile raf = new RandomAccessFile(resultsFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			end = Math.min(end, channel.size() / RECORD_SIZE * RECORD_SIZE);
+			for (long position = start; position < end; position += MAP_CHUNK) {
+				long size = Math.min(MAP_CHUNK, end - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+				while (buffer.remaining() >= RECORD_SIZE) {
+					long key = buffer.getLong();
+					float duration = buffer.getFloat();
+					byte status = buffer.get();
+					stats.add(key, duration, status);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		return stats;
+	}
+
+	/**
+	 * Loads the index, or reloads it if <tt>builds.bin</tt> changed since it was loaded,
+	 * e.g. when the job was deleted and created again under the same name.
+	 */
+	private void loadBuilds() throws IOException {
+		if (builds != null && buildsFile.length() == indexLength && buildsFile.lastModified() == indexModified) {
+			return;
+		}
+		builds = new ArrayList<Build>();
+		names = null;
+		cachedStats = null;
+		if (buildsFile.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(buildsFile)));
+			try {
+				while (true) {
+					builds.add(new Build(in.readInt(), in.readLong(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+							in.readDouble(), in.readLong()));
+				}
+			} catch (EOFException e) {
+				// end of the index, a partly written last entry is ignored
+			} finally {
+				in.close();
+			}
+		}
+
+		// builds whose records aren't all in results.bin are dropped, the next append truncates them
+		long resultsLength = resultsFile.length();
+		while (!builds.isEmpty()) {
+			Build last = builds.get(builds.size() - 1);
+			if (last.offset + (long) last.count * RECORD_SIZE <= resultsLength) {
+				break;
+			}
+			builds.remove(builds.size() - 1);
+		}
+		indexed();
+	}
+
+	private void indexed() {
+		indexLength = buildsFile.length();
+		indexModified = buildsFile.lastModified();
+	}
+
+	private static void write(DataOutputStream out, Build build) throws IOException {
+		out.writeInt(build.number);
+		out.writeLong(build.offset);
+		out.writeInt(build.count);
+		out.writeInt(build.passed);
+		out.writeInt(build.failed);
+		out.writeInt(build.skipped);
+		out.writeDouble(build.time);
+		out.writeLong(build.timestamp);
+	}
+
+	private static void replace(File from, File to) throws IOException {
+		if (!to.delete() && to.exists()) {
+			throw new IOException("couldn't delete " + to);
+		}
+		if (!from.renameTo(to)) {
+			throw new IOException("couldn't rename " + from + " to " + to);
+		}
+	}
+
+	private void loadNames() throws IOException {
+		if (names != null) {
+			return;
+		}
+		names = new HashMap<Long, String>();
+		namesLength = 0;
+		if (!namesFile.exists()) {
+			return;
+		}
+		long fileLength = namesFile.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(namesFile)));
+		try {
+			while (true) {
+				long key = in.readLong();
+				int length = in.readInt();
+				if (length < 0 || namesLength + 8 + 4 + length > fileLength) {
+					// a partly written last name, the next append truncates it
+					break;
+				}
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				names.put(key, new String(bytes, "UTF-8"));
+				namesLength += 8 + 4 + length;
+			}
+		} catch (EOFException e) {
+			// end of the names, a partly written last name is truncated by the next append
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes a name of any length and returns the number of bytes written.
+	 */
+	private static int writeName(DataOutputStream out, long key, String name) throws IOException {
+		byte[] bytes = name.getBytes("UTF-8");
+		out.writeLong(key);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		return 8 + 4 + bytes.length;
+	}
+
+	private static void truncate(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() != length) {
+				raf.setLength(length);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static byte getStatus(String status) {
+		if ("finished".equals(status)) {
+			return PASSED;
+		} else if ("failed".equals(status)) {
+			return FAILED;
+		} else if ("stopped".equals(status)) {
+			return STOPPED;
+		}
+		return SKIPPED;
+	}
+}
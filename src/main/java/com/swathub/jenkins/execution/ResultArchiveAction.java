@@ -0,0 +1,100 @@
+package com.swathub.jenkins.execution;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import jenkins.model.TransientActionFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows the trend, the flaky cases and the slowest cases of a job from its {@link ResultArchive}.
+ */
+public class ResultArchiveAction implements Action {
+	public static final int TREND_BUILDS = 50;
+	public static final int CASE_BUILDS = 500;
+	public static final int MAX_CASES = 50;
+
+	private final ResultArchive archive;
+
+	public ResultArchiveAction(ResultArchive archive) {
+		this.archive = archive;
+	}
+
+	/**
+	 * Returns the archive of a job's SWAT Hub results.
+	 */
+	public static ResultArchive getArchive(Job<?, ?> job) {
+		return ResultArchive.get(job.getFullName(), new File(job.getRootDir(), "swathub-archive"));
+	}
+
+	public List<ResultArchive.Build> getTrend() throws IOException {
+		return archive.getTrend(TREND_BUILDS);
+	}
+
+	public List<ResultArchive.Case> getFlaky() throws IOException {
+		return archive.getFlaky(CASE_BUILDS, MAX_CASES);
+	}
+
+	public List<ResultArchive.Case> getSlowest() throws IOException {
+		return archive.getSlowest(CASE_BUILDS, MAX_CASES);
+	}
+
+	public int getCaseBuilds() {
+		return CASE_BUILDS;
+	}
+
+	public String getIconFileName() {
+		return "graph.png";
+	}
+
+	public String getDisplayName() {
+		return "SWAT Hub Results";
+	}
+
+	public String getUrlName() {
+		return "swathub-results";
+	}
+
+	/**
+	 * Adds the action to every job with archived SWAT Hub results, freestyle or pipeline.
+	 */
+	@Extension
+	public static class Factory extends TransientActionFactory<Job> {
+		@Override
+		public Class<Job> type() {
+			return Job.class;
+		}
+
+		@Override
+		public Collection<? extends Action> createFor(Job target) {
+			ResultArchive archive = getArchive(target);
+			if (!archive.exists()) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new ResultArchiveAction(archive));
+		}
+	}
+
+	/**
+	 * Drops the cached archive of a job that was deleted or renamed.
+	 */
+	@Extension
+	public static class ArchiveEvictor extends ItemListener {
+		@Override
+		public void onDeleted(Item item) {
+			ResultArchive.evict(item.getFullName());
+		}
+
+		@Override
+		public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+			ResultArchive.evict(oldFullName);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes <tt>swat_result.xml</tt> while the jobs are running.
+ *
+ * <p>
+ * Each completed task is appended as a <tt>&lt;testcase&gt;</tt> to a part file per test
+ * suite as soon as it is reported, and only the suite totals are kept, so together with the
+ * {@link TaskTracker}, which drops completed tasks, memory use doesn't depend on the number
+ * of tasks. {@link #finish()} adds the tasks that never completed as skipped, then writes the report
+ * with the <tt>tests</tt>/<tt>failures</tt>/<tt>errors</tt>/<tt>skipped</tt>/<tt>time</tt>
+ * totals in the suite headers, followed by the part files.
+ *
+ * <p>
+ * A failed task with an error message is reported as an error, one without as a failure.
+ */
+public class ResultWriter {
+	private final FilePath resultFile;
+	private final List<Suite> suites = new ArrayList<Suite>();
+	private Map<String, Integer> totals;
+
+	private static class Suite {
+		private final ExecutionJob job;
+		private final FilePath part;
+		private OutputStream stream;
+		private XMLStreamWriter out;
+		private int tests;
+		private int failures;
+		private int errors;
+		private int skipped;
+		private double time;
+
+		private Suite(ExecutionJob job, FilePath part) {
+			this.job = job;
+			this.part = part;
+		}
+	}
+
+	/**
+	 * Starts a report for the given jobs. A report left from an earlier run is deleted, so
+	 * the report only exists once {@link #finish()} wrote it.
+	 */
+	public ResultWriter(FilePath resultFile, List<ExecutionJob> jobs) throws IOException, InterruptedException {
+		this.resultFile = resultFile;
+
+		for (int i = 0; i < jobs.size(); i++) {
+			suites.add(new Suite(jobs.get(i), new FilePath(resultFile.getParent(), resultFile.getName() + "." + i + ".part")));
+		}
+		if (resultFile.exists()) {
+			resultFile.delete();
+		}
+	}
+
+	/**
+	 * Appends a completed task of the given job.
+	 */
+	public void add(ExecutionJob job, JobStatus.Task task) throws IOException, InterruptedException {
+		for (Suite suite : suites) {
+			if (suite.job == job) {
+				write(suite, task);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds the tasks that never completed and writes the final report.
+	 */
+	public void finish() throws IOException, InterruptedException {
+		for (Suite suite : suites) {
+			for (JobStatus.Task task : suite.job.getTracker().getPending()) {
+				write(suite, task);
+			}
+			close(suite);
+		}
+
+		OutputStream stream = resultFile.write();
+		try {
+			XMLStreamWriter out = XMLOutputFactory.newInstance().createXMLStreamWriter(new OutputStreamWriter(stream, "utf-8"));
+			int tests = 0, failures = 0, errors = 0, skipped = 0;
+			double time = 0;
+			StringBuilder name = new StringBuilder();
+			for (Suite suite : suites) {
+				name.append(name.length() == 0 ? "" : ", ").append(suite.job.getName());
+				tests += suite.tests;
+				failures += suite.failures;
+				errors += suite.errors;
+				skipped += suite.skipped;
+				time += suite.time;
+			}
+
+			totals = new LinkedHashMap<String, Integer>();
+			totals.put("tests", tests);
+			totals.put("failures", failures);
+			totals.put("errors", errors);
+			totals.put("skipped", skipped);
+
+			out.writeStartDocument();
+			out.writeStartElement("testsuites");
+			writeTotals(out, tests, failures, errors, skipped, time);
+			out.writeAttribute("name", name.toString());
+
+			for (Suite suite : suites) {
+				out.writeStartElement("testsuite");
+				writeTotals(out, suite.tests, suite.failures, suite.errors, suite.skipped, suite.time);
+				out.writeAttribute("name", suites.size() == 1 ? "Test Set" : suite.job.getName() + " [" + suite.job.getLabel() + "]");
+				// closes the start tag, so the part can be copied in as raw bytes
+				out.writeCharacters("");
+				out.flush();
+
+				if (suite.part.exists()) {
+					InputStream in = suite.part.read();
+					try {
+						byte[] buffer = new byte[8192];
+						int count;
+						while ((count = in.read(buffer)) != -1) {
+							stream.write(buffer, 0, count);
+						}
+					} finally {
+						in.close();
+					}
+				}
+				stream.flush();
+				out.writeEndElement();
+			}
+
+			out.writeEndElement();
+			out.writeEndDocument();
+			out.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			stream.close();
+			deleteParts();
+		}
+	}
+
+	/**
+	 * Returns the <tt>tests</tt>, <tt>failures</tt>, <tt>errors</tt> and <tt>skipped</tt>
+	 * totals of the report, or null if {@link #finish()} didn't write it.
+	 */
+	public Map<String, Integer> getTotals() {
+		return totals;
+	}
+
+	/**
+	 * Discards the part files without writing a report.
+	 */
+	public void abort() {
+		for (Suite suite : suites) {
+			try {
+				close(suite);
+			} catch (Exception e) {
+
+			}
+		}
+		deleteParts();
+	}
+
+	private void write(Suite suite, JobStatus.Task task) throws IOException, InterruptedException {
+		try {
+			if (suite.out == null) {
+				suite.stream = suite.part.write();
+				suite.out = XMLOutputFactory.newInstance().createXMLStreamWriter(new OutputStreamWriter(suite.stream, "utf-8"));
+			}
+
+			XMLStreamWriter out = suite.out;
+			out.writeStartElement("testcase");
+			out.writeAttribute("id", task.getTaskID());
+			out.writeAttribute("name", task.getDescription());
+			out.writeAttribute("status", task.getStatus());
+			out.writeAttribute("time", String.valueOf(task.getDuration()));
+			if (task.hasError()) {
+				out.writeStartElement("error");
+				out.writeAttribute("message", task.getError());
+				out.writeEndElement();
+				suite.errors++;
+			} else if (task.getStatus().equals("failed")) {
+				out.writeEmptyElement("failure");
+				out.writeAttribute("message", "failed");
+				suite.failures++;
+			} else if (!task.isCompleted()) {
+				out.writeEmptyElement("skipped");
+				suite.skipped++;
+			}
+			out.writeEndElement();
+			out.flush();
+
+			suite.tests++;
+			suite.time += task.getDuration();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	private void writeTotals(XMLStreamWriter out, int tests, int failures, int errors, int skipped, double time) throws XMLStreamException {
+		out.writeAttribute("tests", String.valueOf(tests));
+		out.writeAttribute("failures", String.valueOf(failures));
+		out.writeAttribute("errors", String.valueOf(errors));
+		out.writeAttribute("skipped", String.valueOf(skipped));
+		out.writeAttribute("time", String.valueOf(time));
+	}
+
+	private void close(Suite suite) throws IOException {
+		try {
+			if (suite.out != null) {
+				suite.out.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			if (suite.stream != null) {
+				suite.stream.close();
+			}
+			suite.out = null;
+			suite.stream = null;
+		}
+	}
+
+	private void deleteParts() {
+		for (Suite suite : suites) {
+			try {
+				suite.part.delete();
+			} catch (Exception e) {
+
+			}
+		}
+	}
+}
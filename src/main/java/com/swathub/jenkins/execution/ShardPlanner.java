@@ -0,0 +1,122 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Spreads the jobs of a build step over several SWAT Hub execution nodes.
+ *
+ * <p>
+ * The units of work are the test sets or tag groups the step is split into. Each unit is
+ * weighted with its duration in an earlier report, and the units are assigned heaviest
+ * first to the node with the least work so far (longest processing time first), which
+ * keeps the slowest node within 4/3 of the best possible finish time.
+ */
+public class ShardPlanner {
+	/**
+	 * Returns the node for each label.
+	 *
+	 * @param weights
+	 *      the expected duration per label; labels without one get the mean of the others.
+	 */
+	public static Map<String, String> assign(List<String> labels, Map<String, Double> weights, List<String> nodes) {
+		double known = 0;
+		int knownCount = 0;
+		for (String label : labels) {
+			Double weight = weights.get(label);
+			if (weight != null && weight > 0) {
+				known += weight;
+				knownCount++;
+			}
+		}
+		double fallback = knownCount > 0 ? known / knownCount : 1;
+
+		final Map<String, Double> l_weights = new HashMap<String, Double>();
+		for (String label : labels) {
+			Double weight = weights.get(label);
+			l_weights.put(label, weight != null && weight > 0 ? weight : fallback);
+		}
+
+		List<String> sorted = new ArrayList<String>(labels);
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Double.compare(l_weights.get(b), l_weights.get(a));
+			}
+		});
+
+		PriorityQueue<Shard> shards = new PriorityQueue<Shard>();
+		for (int i = 0; i < nodes.size(); i++) {
+			shards.add(new Shard(nodes.get(i), i));
+		}
+
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (String label : sorted) {
+			Shard shard = shards.poll();
+			ret.put(label, shard.node);
+			shard.load += l_weights.get(label);
+			shards.add(shard);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the total duration of each suite of an earlier report, keyed by the job label.
+	 * Returns an empty map if there is no report or it can't be read.
+	 */
+	public static Map<String, Double> readDurations(FilePath report) {
+		Map<String, Double> ret = new HashMap<String, Double>();
+		try {
+			if (report == null || !report.exists()) {
+				return ret;
+			}
+			InputStream in = report.read();
+			try {
+				XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in, "utf-8");
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("testsuite")) {
+						String name = reader.getAttributeValue(null, "name");
+						String time = reader.getAttributeValue(null, "time");
+						// suites of several jobs are named "<job name> [<label>]"
+						if (name != null && time != null && name.endsWith("]") && name.lastIndexOf(" [") >= 0) {
+							ret.put(name.substring(name.lastIndexOf(" [") + 2, name.length() - 1), Double.parseDouble(time));
+						}
+					}
+				}
+				reader.close();
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			ret.clear();
+		}
+		return ret;
+	}
+
+	private static class Shard implements Comparable<Shard> {
+		private final String node;
+		private final int index;
+		private double load;
+
+		private Shard(String node, int index) {
+			this.node = node;
+			this.index = index;
+		}
+
+		public int compareTo(Shard other) {
+			int ret = Double.compare(load, other.load);
+			return ret != 0 ? ret : index - other.index;
+		}
+	}
+}
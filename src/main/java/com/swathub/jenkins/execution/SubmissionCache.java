@@ -0,0 +1,191 @@
+package com.swathub.jenkins.execution;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * De-duplicates identical <tt>/run</tt> submissions of the builds in this JVM.
+ *
+ * <p>
+ * Submissions are keyed by the SWAT Hub workspace, user and full run parameters. While a
+ * job for a key is running, further builds with the same key attach to its jobID instead
+ * of starting the test set again; a build asking while the first one is still waiting for
+ * <tt>/run</tt> to answer waits for the jobID. The jobIDs of completed jobs are kept for a
+ * short time in a small LRU cache, so a rerun right after it reads the final state of the
+ * completed job instead of running the test set again.
+ */
+public class SubmissionCache {
+	private static final int MAX_RESULTS = 50;
+	private static final long SUBMIT_WAIT = 60 * 1000;
+
+	private static final SubmissionCache instance = new SubmissionCache();
+
+	private final HashMap<String, InFlight> inFlight = new HashMap<String, InFlight>();
+	private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+			return size() > MAX_RESULTS;
+		}
+	};
+
+	private static class InFlight {
+		private String jobID;
+		private long submittedAt;
+		private boolean failed;
+		private int refs = 1;
+	}
+
+	private static class Result {
+		private final String jobID;
+		private final long completedAt;
+
+		private Result(String jobID, long completedAt) {
+			this.jobID = jobID;
+			this.completedAt = completedAt;
+		}
+	}
+
+	/**
+	 * What a build should do for a submission.
+	 */
+	public static class Lease {
+		private final String key;
+		private final boolean owner;
+		private final String jobID;
+		private final long submittedAt;
+		private final boolean completed;
+
+		private Lease(String key, boolean owner, String jobID, long submittedAt, boolean completed) {
+			this.key = key;
+			this.owner = owner;
+			this.jobID = jobID;
+			this.submittedAt = submittedAt;
+			this.completed = completed;
+		}
+
+		/**
+		 * Returns true if the caller has to call <tt>/run</tt> and report the jobID through
+		 * {@link SubmissionCache#submitted}, or the failure through {@link SubmissionCache#failed}.
+		 */
+		public boolean isOwner() {
+			return owner;
+		}
+
+		/**
+		 * Returns the jobID of a running or recently completed identical submission, or null.
+		 */
+		public String getJobID() {
+			return jobID;
+		}
+
+		public long getSubmittedAt() {
+			return submittedAt;
+		}
+
+		/**
+		 * Returns true if {@link #getJobID()} is a recently completed identical submission whose result can be reused.
+		 */
+		public boolean isCompleted() {
+			return completed;
+		}
+
+		public String getKey() {
+			return key;
+		}
+	}
+
+	public static SubmissionCache get() {
+		return instance;
+	}
+
+	public static String getKey(String apiBase, String userName, String params) {
+		return apiBase + "|" + userName + "|" + params;
+	}
+
+	/**
+	 * Looks up a submission. A lease that is the owner or attaches to a jobID must be
+	 * released with {@link #release(String)} when the build is done with the job. A lease
+	 * with no jobID means the caller submits on its own, uncached.
+	 *
+	 * @param resultTTL
+	 *      milliseconds a completed result may be reused, 0 to not reuse results.
+	 */
+	public synchronized Lease acquire(String key, long resultTTL) throws InterruptedException {
+		Result result = results.get(key);
+		if (result != null) {
+			if (resultTTL > 0 && System.currentTimeMillis() - result.completedAt <= resultTTL) {
+				return new Lease(key, false, result.jobID, 0, true);
+			}
+			results.remove(key);
+		}
+
+		InFlight entry = inFlight.get(key);
+		if (entry == null) {
+			inFlight.put(key, new InFlight());
+			return new Lease(key, true, null, 0, false);
+		}
+
+		entry.refs++;
+		long deadline = System.currentTimeMillis() + SUBMIT_WAIT;
+		while (entry.jobID == null && !entry.failed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			wait(remaining);
+		}
+		if (entry.jobID == null) {
+			// the first build couldn't submit, this one submits on its own and isn't cached
+			entry.refs--;
+			return new Lease(key, false, null, 0, false);
+		}
+		return new Lease(key, false, entry.jobID, entry.submittedAt, false);
+	}
+
+	public synchronized void submitted(String key, String jobID, long submittedAt) {
+		InFlight entry = inFlight.get(key);
+		if (entry != null) {
+			entry.jobID = jobID;
+			entry.submittedAt = submittedAt;
+			notifyAll();
+		}
+	}
+
+	public synchronized void failed(String key) {
+		InFlight entry = inFlight.remove(key);
+		if (entry != null) {
+			entry.failed = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Stores the jobID of a completed job for reuse.
+	 */
+	public synchronized void completed(String key, String jobID) {
+		results.put(key, new Result(jobID, System.currentTimeMillis()));
+		inFlight.remove(key);
+	}
+
+	/**
+	 * Returns true if no other build holds a lease on the running submission of <tt>key</tt>,
+	 * so its owner may stop the job. The submission is then forgotten, so no build attaches
+	 * to a job that is being stopped.
+	 */
+	public synchronized boolean stopping(String key) {
+		InFlight entry = inFlight.get(key);
+		if (entry != null && entry.refs > 1) {
+			return false;
+		}
+		inFlight.remove(key);
+		return true;
+	}
+
+	public synchronized void release(String key) {
+		InFlight entry = inFlight.get(key);
+		if (entry != null && --entry.refs <= 0) {
+			inFlight.remove(key);
+		}
+	}
+}
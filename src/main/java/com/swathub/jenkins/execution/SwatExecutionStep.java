@@ -0,0 +1,432 @@
+package com.swathub.jenkins.execution;
+
+import com.google.inject.Inject;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipeline step <tt>swathubExecution</tt>, running the same jobs as {@link ExecutionBuilder}.
+ *
+ * <p>
+ * The step doesn't need a node: jobs are submitted when the step starts, and the step then
+ * follows them through the shared {@link JobMonitor} without holding an executor or a
+ * thread. Its poll cycles run on a small pool, when the monitor delivers a result of one of
+ * its jobs or at the latest after the poll interval. Stopping the step stops its jobs. The
+ * running jobs are part of the persisted step state, so after a Jenkins restart the step
+ * resumes polling them instead of starting them again. The API key and the proxy are not:
+ * they are read from the global configuration again, and an API key set on the step is
+ * kept encrypted. The report is written to <tt>swat_result.xml</tt> in the
+ * build directory. The step returns a map of its <tt>path</tt> and its <tt>tests</tt>,
+ * <tt>failures</tt>, <tt>errors</tt> and <tt>skipped</tt> totals.
+ */
+public class SwatExecutionStep extends AbstractStepImpl {
+	private final String testSetID;
+	private String nodeName = "";
+	private String nodeType = "";
+	private String platformCode = "";
+	private boolean isSequential;
+	private String testServer = "";
+	private String apiServer = "";
+	private String tags = "";
+	private String execSettings = "";
+	private boolean isAddIssue;
+	private String domain = "";
+	private String ownerName = "";
+	private String workspace = "";
+	private String userName = "";
+	private String apiKey = "";
+	private String shardNodes = "";
+	private int failFastCount;
+	private int failFastPercent;
+	private String failFastTags = "";
+
+	@DataBoundConstructor
+	public SwatExecutionStep(String testSetID) {
+		this.testSetID = testSetID != null ? testSetID : "";
+	}
+
+	public String getTestSetID() {
+		return testSetID;
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	@DataBoundSetter
+	public void setNodeName(String nodeName) {
+		this.nodeName = nodeName;
+	}
+
+	public String getNodeType() {
+		return nodeType;
+	}
+
+	@DataBoundSetter
+	public void setNodeType(String nodeType) {
+		this.nodeType = nodeType;
+	}
+
+	public String getPlatformCode() {
+		return platformCode;
+	}
+
+	@DataBoundSetter
+	public void setPlatformCode(String platformCode) {
+		this.platformCode = platformCode;
+	}
+
+	public boolean getIsSequential() {
+		return isSequential;
+	}
+
+	@DataBoundSetter
+	public void setIsSequential(boolean isSequential) {
+		this.isSequential = isSequential;
+	}
+
+	public String getTestServer() {
+		return testServer;
+	}
+
+	@DataBoundSetter
+	public void setTestServer(String testServer) {
+		this.testServer = testServer;
+	}
+
+	public String getApiServer() {
+		return apiServer;
+	}
+
+	@DataBoundSetter
+	public void setApiServer(String apiServer) {
+		this.apiServer = apiServer;
+	}
+
+	public String getTags() {
+		return tags;
+	}
+
+	@DataBoundSetter
+	public void setTags(String tags) {
+		this.tags = tags;
+	}
+
+	public String getExecSettings() {
+		return execSettings;
+	}
+
+	@DataBoundSetter
+	public void setExecSettings(String execSettings) {
+		this.execSettings = execSettings;
+	}
+
+	public boolean getIsAddIssue() {
+		return isAddIssue;
+	}
+
+	@DataBoundSetter
+	public void setIsAddIssue(boolean isAddIssue) {
+		this.isAddIssue = isAddIssue;
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	@DataBoundSetter
+	public void setDomain(String domain) {
+		this.domain = domain;
+	}
+
+	public String getOwnerName() {
+		return ownerName;
+	}
+
+	@DataBoundSetter
+	public void setOwnerName(String ownerName) {
+		this.ownerName = ownerName;
+	}
+
+	public String getWorkspace() {
+		return workspace;
+	}
+
+	@DataBoundSetter
+	public void setWorkspace(String workspace) {
+		this.workspace = workspace;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	@DataBoundSetter
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	public String getApiKey() {
+		return apiKey;
+	}
+
+	@DataBoundSetter
+	public void setApiKey(String apiKey) {
+		this.apiKey = apiKey;
+	}
+
+	public String getShardNodes() {
+		return shardNodes;
+	}
+
+	@DataBoundSetter
+	public void setShardNodes(String shardNodes) {
+		this.shardNodes = shardNodes;
+	}
+
+	public int getFailFastCount() {
+		return failFastCount;
+	}
+
+	@DataBoundSetter
+	public void setFailFastCount(int failFastCount) {
+		this.failFastCount = failFastCount;
+	}
+
+	public int getFailFastPercent() {
+		return failFastPercent;
+	}
+
+	@DataBoundSetter
+	public void setFailFastPercent(int failFastPercent) {
+		this.failFastPercent = failFastPercent;
+	}
+
+	public String getFailFastTags() {
+		return failFastTags;
+	}
+
+	@DataBoundSetter
+	public void setFailFastTags(String failFastTags) {
+		this.failFastTags = failFastTags;
+	}
+
+	ExecutionBuilder createBuilder() {
+		ExecutionBuilder builder = new ExecutionBuilder(domain, ownerName, workspace, userName, apiKey, testSetID, nodeName, nodeType,
+				platformCode, isSequential, testServer, apiServer, tags, execSettings, isAddIssue);
+		builder.setShardNodes(shardNodes);
+		builder.setFailFastCount(failFastCount);
+		builder.setFailFastPercent(failFastPercent);
+		builder.setFailFastTags(failFastTags);
+		return builder;
+	}
+
+	public static class Execution extends AbstractStepExecutionImpl {
+		private static final long serialVersionUID = 1L;
+		private static final int CYCLE_THREADS = 4;
+
+		// runs the poll cycles of all steps, a step only takes a thread while one of its cycles runs
+		private static final ScheduledExecutorService cycles = Executors.newScheduledThreadPool(CYCLE_THREADS, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "SWAT Hub step poller " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		@Inject(optional = true)
+		private transient SwatExecutionStep step;
+
+		private ExecutionRunner runner;
+		private String resultPath;
+		// the API key set on the step, encrypted; null if the global one is used
+		private String encryptedApiKey;
+		private transient ScheduledFuture<?> next;
+		private transient volatile boolean done;
+		private transient volatile Throwable stopCause;
+
+		@Override
+		public boolean start() throws Exception {
+			Run<?, ?> run = getContext().get(Run.class);
+			TaskListener listener = getContext().get(TaskListener.class);
+
+			File resultFile = new File(run.getRootDir(), "swat_result.xml");
+			resultPath = resultFile.getAbsolutePath();
+			runner = step.createBuilder().createRunner(new FilePath(resultFile), null);
+			if (!step.getApiKey().isEmpty()) {
+				encryptedApiKey = Secret.fromString(step.getApiKey()).getEncryptedValue();
+			}
+			runner.begin(null);
+			try {
+				// submit before going asynchronous, so the persisted state already holds the jobIDs
+				// of the jobs that got a slot
+				runner.submit(null, listener);
+			} catch (Exception e) {
+				runner.end(null, listener, false);
+				throw e;
+			}
+
+			startCycles();
+			return false;
+		}
+
+		/**
+		 * Stops the jobs of the step and gives back their slots and submissions, then fails the
+		 * step with <tt>cause</tt>. Done by the next cycle, after the one that may be running.
+		 */
+		@Override
+		public void stop(Throwable cause) throws Exception {
+			stopCause = cause;
+			schedule(0);
+		}
+
+		@Override
+		public void onResume() {
+			super.onResume();
+			if (runner != null) {
+				ExecutionBuilder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(ExecutionBuilder.DescriptorImpl.class);
+				Secret apiKey = encryptedApiKey != null ? Secret.decrypt(encryptedApiKey) : null;
+				runner.setCredentials(apiKey != null ? apiKey.getPlainText() : descriptor.getApiKey(), descriptor.getProxy());
+				runner.resumed();
+				try {
+					runner.begin(null);
+				} catch (Exception e) {
+					getContext().onFailure(e);
+					return;
+				}
+				startCycles();
+			}
+		}
+
+		private void startCycles() {
+			runner.setOnUpdate(new Runnable() {
+				public void run() {
+					schedule(0);
+				}
+			});
+			schedule(0);
+		}
+
+		/**
+		 * Runs the next cycle after <tt>delay</tt> milliseconds, unless one is due sooner.
+		 */
+		private synchronized void schedule(long delay) {
+			if (done) {
+				return;
+			}
+			if (next != null) {
+				if (next.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+					return;
+				}
+				next.cancel(false);
+			}
+			next = cycles.schedule(new Runnable() {
+				public void run() {
+					cycle();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void cycle() {
+			synchronized (this) {
+				next = null;
+			}
+			synchronized (runner) {
+				if (done) {
+					return;
+				}
+				TaskListener listener = null;
+				Exception error = null;
+				try {
+					listener = getContext().get(TaskListener.class);
+					if (stopCause == null && runner.cycle(null, listener)) {
+						// the monitor calls back with new results, this is only the fallback
+						schedule(runner.isHeld() ? 0 : runner.getScheduler().getInterval());
+						return;
+					}
+				} catch (Exception e) {
+					error = e;
+				}
+				done = true;
+				finish(listener, error);
+			}
+		}
+
+		/**
+		 * Ends the run after its last cycle, a failed cycle or a stop, and completes the step.
+		 */
+		private void finish(TaskListener listener, Exception error) {
+			Throwable cause = stopCause;
+			try {
+				try {
+					if (cause != null) {
+						runner.stop(null, listener);
+					} else {
+						runner.end(null, listener, error == null);
+					}
+				} finally {
+					Run<?, ?> run = getContext().get(Run.class);
+					ExecutionBuilder.addMetrics(run, runner.getMetrics().snapshot(), null);
+					ExecutionBuilder.archiveResults(run, new FilePath(new File(resultPath)), listener);
+				}
+			} catch (Exception e) {
+				error = error != null ? error : e;
+			}
+
+			if (cause != null) {
+				getContext().onFailure(cause);
+				return;
+			}
+			if (error != null) {
+				getContext().onFailure(error);
+				return;
+			}
+			try {
+				runner.recordHistory(listener);
+				listener.getLogger().println("SWAT Hub report written to " + resultPath);
+				HashMap<String, Object> summary = new HashMap<String, Object>(runner.getTotals());
+				summary.put("path", resultPath);
+				getContext().onSuccess(summary);
+			} catch (Exception e) {
+				getContext().onFailure(e);
+			}
+		}
+	}
+
+	@Extension(optional = true)
+	public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "swathubExecution";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "SWAT Execution";
+		}
+	}
+}
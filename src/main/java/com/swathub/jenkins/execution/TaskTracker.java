@@ -0,0 +1,206 @@
+package com.swathub.jenkins.execution;
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps the last known state of every pending task of a job and reports only what changed.
+ *
+ * <p>
+ * {@link #update(Collection)} merges the tasks of a poll into an index keyed by
+ * taskID and returns the state transitions it caused. The tasks passed in don't
+ * have to be the full task list, so a delta response can be fed in the same way
+ * as a full one. Every change is stamped with a revision, and
+ * {@link #getChangedSince(long)} returns the pending tasks changed after a given cursor.
+ *
+ * <p>
+ * A task is handed out once by its completion transition and then dropped, only its
+ * taskID is kept, so memory doesn't grow with the number of completed tasks.
+ *
+ * <p>
+ * Instances are not thread-safe; each build uses its own tracker.
+ */
+public class TaskTracker implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final LinkedHashMap<String, Entry> tasks = new LinkedHashMap<String, Entry>();
+	private final HashSet<String> completed = new HashSet<String>();
+	private HashSet<String> replay;
+	private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private long revision;
+
+	private static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private JobStatus.Task task;
+		private long revision;
+	}
+
+	/**
+	 * A change of a task's status between two polls.
+	 */
+	public static class Transition {
+		private final JobStatus.Task task;
+		private final String previousStatus;
+		private final boolean completion;
+		private final boolean replayed;
+		private final int completedCount;
+
+		private Transition(JobStatus.Task task, String previousStatus, boolean completion, boolean replayed, int completedCount) {
+			this.task = task;
+			this.previousStatus = previousStatus;
+			this.completion = completion;
+			this.replayed = replayed;
+			this.completedCount = completedCount;
+		}
+
+		public JobStatus.Task getTask() {
+			return task;
+		}
+
+		/**
+		 * Returns the status before this transition, or null for a task seen for the first time.
+		 */
+		public String getPreviousStatus() {
+			return previousStatus;
+		}
+
+		/**
+		 * Returns true if the task reached a completed state with this transition.
+		 */
+		public boolean isCompletion() {
+			return completion;
+		}
+
+		/**
+		 * Returns true for the completion of a task that was already handed out before
+		 * {@link TaskTracker#replay()}, only to be written to the report again.
+		 */
+		public boolean isReplayed() {
+			return replayed;
+		}
+
+		/**
+		 * Returns the number of completed tasks including this one, for progress messages.
+		 */
+		public int getCompletedCount() {
+			return completedCount;
+		}
+	}
+
+	/**
+	 * Merges the given tasks into the index and returns the transitions they caused, in order.
+	 */
+	public List<Transition> update(Collection<JobStatus.Task> updates) {
+		ArrayList<Transition> transitions = new ArrayList<Transition>();
+		long current = revision + 1;
+
+		for (JobStatus.Task task : updates) {
+			String taskID = task.getTaskID();
+			if (taskID == null) {
+				continue;
+			}
+
+			if (completed.contains(taskID)) {
+				if (replay != null && task.isCompleted() && replay.remove(taskID)) {
+					transitions.add(new Transition(task, null, true, true, completed.size()));
+				}
+				continue;
+			}
+
+			Entry entry = tasks.get(taskID);
+			String previousStatus = null;
+			if (entry == null) {
+				entry = new Entry();
+				tasks.put(taskID, entry);
+			} else if (entry.task.getStatus().equals(task.getStatus())) {
+				entry.task = task;
+				continue;
+			} else {
+				previousStatus = entry.task.getStatus();
+			}
+			entry.task = task;
+			entry.revision = current;
+
+			boolean completion = task.isCompleted();
+			if (completion) {
+				tasks.remove(taskID);
+				completed.add(taskID);
+			}
+			transitions.add(new Transition(task, previousStatus, completion, false, completed.size()));
+		}
+		if (replay != null && replay.isEmpty()) {
+			replay = null;
+		}
+
+		if (!transitions.isEmpty()) {
+			revision = current;
+		}
+		return transitions;
+	}
+
+	/**
+	 * Returns the revision of the latest change, to be used as a "changed since" cursor.
+	 */
+	public long getCursor() {
+		return revision;
+	}
+
+	/**
+	 * Returns the pending tasks whose state changed after the given cursor.
+	 */
+	public List<JobStatus.Task> getChangedSince(long cursor) {
+		ArrayList<JobStatus.Task> ret = new ArrayList<JobStatus.Task>();
+		for (Entry entry : tasks.values()) {
+			if (entry.revision > cursor) {
+				ret.add(entry.task);
+			}
+		}
+		return ret;
+	}
+
+	public boolean isCompleted(String taskID) {
+		return completed.contains(taskID);
+	}
+
+	public int getCompletedCount() {
+		return completed.size();
+	}
+
+	public int getTotalCount() {
+		return tasks.size() + completed.size();
+	}
+
+	/**
+	 * Makes the next update hand out the tasks that already completed once more, as
+	 * {@link Transition#isReplayed() replayed} completions, e.g. to write the report of a
+	 * resumed build again from a full query.
+	 */
+	public void replay() {
+		replay = completed.isEmpty() ? null : new HashSet<String>(completed);
+	}
+
+	/**
+	 * Returns the latest known state of the tasks that haven't completed, in the order they were first seen.
+	 */
+	public List<JobStatus.Task> getPending() {
+		ArrayList<JobStatus.Task> ret = new ArrayList<JobStatus.Task>(tasks.size());
+		for (Entry entry : tasks.values()) {
+			ret.add(entry.task);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the current time formatted for progress messages.
+	 */
+	public String timestamp() {
+		return df.format(new Date());
+	}
+}
@@ -1,150 +1,309 @@
 package com.swathub.jenkins.execution;
 
-import hudson.FilePath;
-import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
-import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHeaders;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.Credentials;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.*;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamWriter;
 import java.io.*;
 import java.net.*;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 
 public class Utils {
-	public JSONObject apiGet(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy) throws Exception{
-		JSONObject ret;
-
-		CredentialsProvider credsProvider = new BasicCredentialsProvider();
-		credsProvider.setCredentials(AuthScope.ANY,
-				new UsernamePasswordCredentials(accessKey, secretKey));
-		HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-		clientBuilder.useSystemProperties();
-
-		if (!proxy.get("server").isEmpty()) {
-			credsProvider.setCredentials(
-					new AuthScope(proxy.get("server"), Integer.parseInt(proxy.get("port"))),
-					new UsernamePasswordCredentials(proxy.get("username"), proxy.get("password")));
-			clientBuilder.setProxy(new HttpHost(proxy.get("server"), Integer.parseInt(proxy.get("port"))));
-			clientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
-		}
+	private static final long RETRY_BASE_DELAY = 1000;
+	private static final long RETRY_MAX_DELAY = 30000;
+	private static final long RETRY_AFTER_MAX_DELAY = 120000;
 
-		clientBuilder.setDefaultCredentialsProvider(credsProvider);
-		CloseableHttpClient httpclient = clientBuilder.build();
+	public JSONObject apiGet(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings) throws Exception{
 		HttpGet request = new HttpGet(apiUrl);
 
-		HttpResponse response = httpclient.execute(request);
+		return execute(request, accessKey, secretKey, proxy, settings);
+	}
 
-		if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-			throw new Exception("SWAT Hub api call return false." + response.getStatusLine().getStatusCode());
+	public JSONObject apiPost(String apiUrl, String accessKey, String secretKey, String body, final HashMap<String, String> proxy, ClientSettings settings) throws Exception{
+		HttpPost request = new HttpPost(apiUrl);
+		request.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+		if (body != null && !body.isEmpty()) {
+			request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
 		}
 
-		BufferedReader rd = new BufferedReader(
-				new InputStreamReader(response.getEntity().getContent()));
-		StringBuffer result = new StringBuffer();
-		String line;
-		while ((line = rd.readLine()) != null) {
-			result.append(line);
+		return execute(request, accessKey, secretKey, proxy, settings);
+	}
+
+	/**
+	 * Queries a job and parses the response as a stream into a {@link JobStatus}.
+	 */
+	public JobStatus apiQuery(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings) throws Exception{
+		return apiQuery(apiUrl, accessKey, secretKey, proxy, settings, null);
+	}
+
+	/**
+	 * Queries a job with <tt>If-None-Match</tt>, if <tt>etag</tt> is not null. If the job
+	 * didn't change, the server answers 304 without a body and a
+	 * {@link JobStatus#notModified(String) not modified} status is returned without parsing.
+	 */
+	public JobStatus apiQuery(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings,
+			String etag) throws Exception{
+		HttpGet request = new HttpGet(apiUrl);
+		if (etag != null) {
+			request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
 		}
-		httpclient.close();
 
-		ret = new JSONObject().fromObject(result.toString());
+		HttpResponse response = send(request, accessKey, secretKey, proxy, settings);
+		try {
+			if (response.getStatusLine().getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				EntityUtils.consume(response.getEntity());
+				return JobStatus.notModified(etag);
+			}
 
-		return ret;
+			Header etagHeader = response.getFirstHeader(HttpHeaders.ETAG);
+			InputStream in = getContent(response);
+			long parseStart = System.nanoTime();
+			try {
+				JobStatus status = JobStatus.parse(in);
+				status.setETag(etagHeader != null ? etagHeader.getValue() : null);
+				return status;
+			} finally {
+				in.close();
+				parsed(parseStart);
+			}
+		} finally {
+			close(response);
+		}
 	}
 
-	public JSONObject apiPost(String apiUrl, String accessKey, String secretKey, String body, final HashMap<String, String> proxy) throws Exception{
-		JSONObject ret;
+	/**
+	 * Queries several jobs in one call and parses the response as a stream, keyed by jobID.
+	 */
+	public Map<String, JobStatus> apiQueryBatch(String apiUrl, String accessKey, String secretKey, final HashMap<String, String> proxy, ClientSettings settings) throws Exception{
+		HttpGet request = new HttpGet(apiUrl);
 
-		CredentialsProvider credsProvider = new BasicCredentialsProvider();
-		credsProvider.setCredentials(AuthScope.ANY,
-				new UsernamePasswordCredentials(accessKey, secretKey));
-		HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-		clientBuilder.useSystemProperties();
-
-		if (!proxy.get("server").isEmpty()) {
-			credsProvider.setCredentials(
-					new AuthScope(proxy.get("server"), Integer.parseInt(proxy.get("port"))),
-					new UsernamePasswordCredentials(proxy.get("username"), proxy.get("password")));
-			clientBuilder.setProxy(new HttpHost(proxy.get("server"), Integer.parseInt(proxy.get("port"))));
-			clientBuilder.setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
+		HttpResponse response = send(request, accessKey, secretKey, proxy, settings);
+		try {
+			InputStream in = getContent(response);
+			long parseStart = System.nanoTime();
+			try {
+				return JobStatus.parseBatch(in);
+			} finally {
+				in.close();
+				parsed(parseStart);
+			}
+		} finally {
+			close(response);
 		}
+	}
 
-		clientBuilder.setDefaultCredentialsProvider(credsProvider);
-		CloseableHttpClient httpclient = clientBuilder.build();
-		HttpPost request = new HttpPost(apiUrl);
-		request.setHeader(HttpHeaders.CONTENT_TYPE, "application/json");
+	private JSONObject execute(HttpRequestBase request, String accessKey, String secretKey, final HashMap<String, String> proxy,
+			ClientSettings settings) throws Exception {
+		JSONObject ret;
 
-		HttpResponse response = httpclient.execute(request);
+		HttpResponse response = send(request, accessKey, secretKey, proxy, settings);
+		try {
+			long parseStart = System.nanoTime();
+			BufferedReader rd = new BufferedReader(
+					new InputStreamReader(getContent(response)));
+			StringBuffer result = new StringBuffer();
+			String line;
+			while ((line = rd.readLine()) != null) {
+				result.append(line);
+			}
 
-		if (response.getStatusLine().getStatusCode() != HttpURLConnection.HTTP_OK) {
-			throw new Exception("SWAT Hub api call return false." + response.getStatusLine().getStatusCode());
+			ret = new JSONObject().fromObject(result.toString());
+			parsed(parseStart);
+		} finally {
+			close(response);
 		}
 
-		BufferedReader rd = new BufferedReader(
-				new InputStreamReader(response.getEntity().getContent()));
-		StringBuffer result = new StringBuffer();
-		String line;
-		while ((line = rd.readLine()) != null) {
-			result.append(line);
+		return ret;
+	}
+
+	/**
+	 * Sends a request with the timeouts of <tt>settings</tt> and returns its 200 response,
+	 * or its 304 response if the request is conditional.
+	 *
+	 * <p>
+	 * I/O errors and 5xx/429 responses are retried with jittered exponential backoff, or
+	 * after the server's <tt>Retry-After</tt>. A POST is only retried when the server can't
+	 * have acted on it: when the connection failed, or on 429 and 503. All calls go through
+	 * the {@link CircuitBreaker} of the host and take a token of its {@link RateLimiter}.
+	 *
+	 * <p>
+	 * The request is sent through the pooled client of {@link ClientPool}, or of
+	 * {@link AsyncClientPool} if the settings ask for it. The response must be
+	 * passed to {@link #close(HttpResponse)} when done.
+	 */
+	private HttpResponse send(HttpRequestBase request, String accessKey, String secretKey, final HashMap<String, String> proxy,
+			ClientSettings settings) throws Exception {
+		String apiUrl = request.getURI().toString();
+		request.setConfig(RequestConfig.custom()
+				.setConnectTimeout(settings.getConnectTimeout() * 1000)
+				.setConnectionRequestTimeout(settings.getConnectTimeout() * 1000)
+				.setSocketTimeout(settings.getReadTimeout() * 1000)
+				.build());
+		boolean idempotent = request.getMethod().equals(HttpGet.METHOD_NAME);
+		CircuitBreaker breaker = CircuitBreaker.get(request.getURI(), settings);
+		RateLimiter limiter = RateLimiter.get(request.getURI());
+		CallSample sample = CallSample.get();
+		long bytesOut = 0;
+		if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+			bytesOut = Math.max(((HttpEntityEnclosingRequest) request).getEntity().getContentLength(), 0);
 		}
-		httpclient.close();
 
-		ret = new JSONObject().fromObject(result.toString());
+		for (int attempt = 0; ; attempt++) {
+			limiter.acquire(settings.getMaxRequestRate());
+			breaker.acquire();
+			long delay;
+			long requestStart = System.nanoTime();
+			boolean reported = false;
+			try {
+				// the client is pooled, so only the response is closed to hand the connection back
+				HttpResponse response;
+				if (settings.isAsync()) {
+					response = AsyncClientPool.execute(request, accessKey, secretKey, proxy, settings);
+				} else {
+					response = ClientPool.getClient(apiUrl, accessKey, secretKey, proxy, settings).execute(request);
+				}
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (sample != null) {
+					sample.request(statusCode, System.nanoTime() - requestStart, bytesOut);
+				}
+				if (statusCode == HttpURLConnection.HTTP_OK ||
+						(statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && request.containsHeader(HttpHeaders.IF_NONE_MATCH))) {
+					reported = true;
+					breaker.succeeded();
+					return response;
+				}
+
+				long retryAfter = getRetryAfter(response);
+				try {
+					EntityUtils.consume(response.getEntity());
+				} finally {
+					close(response);
+				}
 
-		return ret;
+				reported = true;
+				if (statusCode < 500 && statusCode != 429) {
+					breaker.succeeded();
+					throw new ApiException(statusCode);
+				}
+				breaker.failed();
+				if (attempt >= settings.getMaxRetries() || !(idempotent || statusCode == 429 || statusCode == 503)) {
+					throw new ApiException(statusCode);
+				}
+				delay = retryAfter >= 0 ? retryAfter : getBackoff(attempt);
+			} catch (IOException e) {
+				if (sample != null) {
+					sample.request(0, System.nanoTime() - requestStart, bytesOut);
+				}
+				if (!reported) {
+					reported = true;
+					breaker.failed();
+				}
+				boolean notSent = e instanceof ConnectException || e instanceof ConnectTimeoutException;
+				if (attempt >= settings.getMaxRetries() || !(idempotent || notSent)) {
+					throw e;
+				}
+				delay = getBackoff(attempt);
+			} finally {
+				// an interrupted or otherwise broken call must not leave a trial call unanswered
+				if (!reported) {
+					breaker.failed();
+				}
+			}
+
+			breaker.retried();
+			Thread.sleep(delay);
+		}
 	}
 
-	public void createXmlFile(FilePath fp, JSONObject execResult) {
-		try {
-			XMLStreamWriter out = XMLOutputFactory.newInstance().createXMLStreamWriter(
-					new OutputStreamWriter(fp.write(), "utf-8"));
-
-			out.writeStartDocument();
-			out.writeStartElement("testsuites");
-			out.writeAttribute("tests", "1");
-			out.writeAttribute("name", execResult.getString("name"));
-
-			out.writeStartElement("testsuite");
-			out.writeAttribute("tests", "1");
-			out.writeAttribute("name", "Test Set");
-
-			JSONArray tasks = execResult.getJSONArray("tasks");
-			for (int i = 0; i < tasks.size(); i++) {
-				JSONObject task = tasks.getJSONObject(i);
-
-				out.writeStartElement("testcase");
-				out.writeAttribute("id", task.getString("taskID"));
-				out.writeAttribute("name", task.getString("description"));
-				out.writeAttribute("status", task.getString("status"));
-				out.writeAttribute("time", String.valueOf(task.getDouble("duration")));
-				if (task.has("error")) {
-					out.writeStartElement("error");
-					out.writeAttribute("message", task.getString("error"));
-					out.writeEndElement();
+	/**
+	 * Hands the connection of a response back to its pool. A blocking response is closed,
+	 * which drops a connection whose body wasn't read to the end; the streamed body of one
+	 * from the non-blocking client is read to the end, which releases its connection.
+	 */
+	private static void close(HttpResponse response) throws IOException {
+		if (response instanceof CloseableHttpResponse) {
+			((CloseableHttpResponse) response).close();
+		} else {
+			EntityUtils.consume(response.getEntity());
+		}
+	}
+
+	/**
+	 * Returns the body of a response, counting the bytes read into the current {@link CallSample}.
+	 */
+	private static InputStream getContent(HttpResponse response) throws IOException {
+		InputStream in = response.getEntity().getContent();
+		final CallSample sample = CallSample.get();
+		if (sample == null) {
+			return in;
+		}
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b != -1) {
+					sample.received(1);
 				}
-				out.writeEndElement();
+				return b;
 			}
 
-			out.writeEndElement();
-			out.writeEndDocument();
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int count = super.read(buffer, offset, length);
+				if (count > 0) {
+					sample.received(count);
+				}
+				return count;
+			}
+		};
+	}
 
-			out.close();
+	private static void parsed(long start) {
+		CallSample sample = CallSample.get();
+		if (sample != null) {
+			sample.parsed(System.nanoTime() - start);
+		}
+	}
+
+	private static long getBackoff(int attempt) {
+		long delay = Math.min(RETRY_BASE_DELAY << Math.min(attempt, 10), RETRY_MAX_DELAY);
+		// half fixed, half random, so builds failing together don't retry together
+		return delay / 2 + (long) (Math.random() * (delay / 2));
+	}
 
-		} catch (Exception e) {
-			e.printStackTrace();
+	/**
+	 * Returns the delay of a <tt>Retry-After</tt> header in milliseconds, or -1 if there is none.
+	 */
+	private static long getRetryAfter(HttpResponse response) {
+		Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+		if (header == null || header.getValue() == null) {
+			return -1;
+		}
+
+		long delay;
+		try {
+			delay = Long.parseLong(header.getValue().trim()) * 1000;
+		} catch (NumberFormatException nfe) {
+			Date date = DateUtils.parseDate(header.getValue().trim());
+			if (date == null) {
+				return -1;
+			}
+			delay = date.getTime() - System.currentTimeMillis();
 		}
+		return Math.max(0, Math.min(delay, RETRY_AFTER_MAX_DELAY));
 	}
 }
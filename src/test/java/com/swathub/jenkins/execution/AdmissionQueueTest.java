@@ -0,0 +1,81 @@
+package com.swathub.jenkins.execution;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionQueueTest {
+	private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+	private final PrintStream logger = new PrintStream(log, true);
+	private final PollScheduler scheduler = new PollScheduler(1000, 5000, 2.0);
+
+	@Test
+	public void moreJobsThanSlotsWaitWithoutBlocking() {
+		AdmissionQueue queue = new AdmissionQueue();
+		Object a = new Object();
+		Object b = new Object();
+		Object c = new Object();
+
+		assertTrue(queue.tryAcquire(a, 2, scheduler, logger, ""));
+		assertTrue(queue.tryAcquire(b, 2, scheduler, logger, ""));
+		assertFalse(queue.tryAcquire(c, 2, scheduler, logger, ""));
+		assertEquals(1, queue.getWaiting());
+		assertTrue(log.toString().contains("position 1 of 1"));
+
+		queue.release();
+		assertTrue(queue.tryAcquire(c, 2, scheduler, logger, ""));
+		assertEquals(2, queue.getRunning());
+		assertEquals(0, queue.getWaiting());
+	}
+
+	@Test
+	public void slotsGoInQueueOrder() {
+		AdmissionQueue queue = new AdmissionQueue();
+		Object first = new Object();
+		Object second = new Object();
+
+		assertTrue(queue.tryAcquire(new Object(), 1, scheduler, logger, ""));
+		assertFalse(queue.tryAcquire(first, 1, scheduler, logger, ""));
+		assertFalse(queue.tryAcquire(second, 1, scheduler, logger, "[b] "));
+		assertTrue(log.toString().contains("[b] waiting for one of the 1 job slots of the workspace, position 2 of 2"));
+
+		queue.release();
+		assertFalse(queue.tryAcquire(second, 1, scheduler, logger, ""));
+		assertTrue(queue.tryAcquire(first, 1, scheduler, logger, ""));
+	}
+
+	@Test
+	public void restoredJobsCountEvenOverTheCap() {
+		AdmissionQueue queue = new AdmissionQueue();
+		Object waiting = new Object();
+
+		assertTrue(queue.tryAcquire(new Object(), 1, scheduler, logger, ""));
+		queue.acquireRunning();
+		assertEquals(2, queue.getRunning());
+		assertFalse(queue.tryAcquire(waiting, 1, scheduler, logger, ""));
+
+		queue.release();
+		assertFalse(queue.tryAcquire(waiting, 1, scheduler, logger, ""));
+		queue.release();
+		assertTrue(queue.tryAcquire(waiting, 1, scheduler, logger, ""));
+	}
+
+	@Test
+	public void cancelledJobLeavesTheQueue() {
+		AdmissionQueue queue = new AdmissionQueue();
+		Object waiting = new Object();
+		Object next = new Object();
+
+		assertTrue(queue.tryAcquire(new Object(), 1, scheduler, logger, ""));
+		assertFalse(queue.tryAcquire(waiting, 1, scheduler, logger, ""));
+		assertFalse(queue.tryAcquire(next, 1, scheduler, logger, ""));
+		queue.cancel(waiting);
+		queue.release();
+		assertTrue(queue.tryAcquire(next, 1, scheduler, logger, ""));
+	}
+}
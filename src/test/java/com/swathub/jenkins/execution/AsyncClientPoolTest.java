@@ -0,0 +1,165 @@
+package com.swathub.jenkins.execution;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Many jobs long-polled at the same time through {@link AsyncClientPool}, against a
+ * {@link FakeSwatHub}: the client threads stay the same however many queries are in flight.
+ */
+public class AsyncClientPoolTest {
+	private static final int PARSER_THREADS = 4;
+
+	private FakeSwatHub hub;
+	private ExecutorService parsers;
+
+	@Before
+	public void setUp() throws Exception {
+		hub = new FakeSwatHub();
+		parsers = Executors.newFixedThreadPool(PARSER_THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		parsers.shutdownNow();
+		hub.stop();
+		AsyncClientPool.shutdown();
+	}
+
+	@Test
+	public void tenJobs() throws Exception {
+		load(10);
+	}
+
+	@Test
+	public void hundredJobs() throws Exception {
+		load(100);
+	}
+
+	@Test
+	public void fiveHundredJobs() throws Exception {
+		load(500);
+	}
+
+	@Test
+	public void gzipBodyIsStreamedAndDecompressed() throws Exception {
+		hub.setDescriptionLength(300);
+		hub.addJob("job-1", 2000, 0, 10);
+		HttpGet request = new HttpGet(hub.getApiBase() + "/jobs/job-1/query");
+		request.setConfig(RequestConfig.custom().setSocketTimeout(10000).build());
+
+		// a body many times the buffer size still arrives whole
+		HttpResponse response = AsyncClientPool.execute(request, "user", "key", FakeSwatHub.noProxy(), settings(5));
+		InputStream in = response.getEntity().getContent();
+		try {
+			JobStatus status = JobStatus.parse(in);
+			assertEquals(2000, status.getTasks().size());
+			assertEquals("Element #login not found", status.getTasks().get(9).getError());
+		} finally {
+			in.close();
+		}
+		assertTrue(hub.getRequests().get(0).getHeader("Accept-Encoding").contains("gzip"));
+		assertTrue(hub.getBytesSent() > AsyncClientPool.BUFFER_SIZE);
+	}
+
+	/**
+	 * Long-polls <tt>jobs</tt> jobs at once, each held by the server until its first task
+	 * completes after a second, and checks the client threads and heap while they are held.
+	 */
+	private void load(int jobs) throws Exception {
+		for (int i = 0; i < jobs; i++) {
+			hub.addJob("job-" + i, 100, 1000, 0);
+		}
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final AtomicInteger answered = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		long heapBefore = usedHeap();
+
+		for (int i = 0; i < jobs; i++) {
+			HttpGet request = new HttpGet(hub.getApiBase() + "/jobs/job-" + i + "/query?since=r0&wait=10");
+			request.setConfig(RequestConfig.custom().setConnectTimeout(10000).setConnectionRequestTimeout(10000).setSocketTimeout(20000).build());
+			AsyncClientPool.execute(request, "user", "key", FakeSwatHub.noProxy(), settings(jobs), new FutureCallback<HttpResponse>() {
+				public void completed(final HttpResponse response) {
+					// the body is read off the I/O threads
+					parsers.execute(new Runnable() {
+						public void run() {
+							try {
+								InputStream in = response.getEntity().getContent();
+								try {
+									if (JobStatus.parse(in).getTasks().size() == 1) {
+										answered.incrementAndGet();
+									}
+								} finally {
+									in.close();
+								}
+							} catch (Exception e) {
+								failed.incrementAndGet();
+							} finally {
+								done.countDown();
+							}
+						}
+					});
+				}
+
+				public void failed(Exception e) {
+					failed.incrementAndGet();
+					done.countDown();
+				}
+
+				public void cancelled() {
+					failed.incrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+
+		Thread.sleep(500);
+		int ioThreads = countThreads("SWAT Hub I/O");
+		long heapHeld = usedHeap();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+
+		assertEquals(AsyncClientPool.IO_THREADS + 1, ioThreads);
+		// a held query costs a connection and its stream buffer, not a thread or a whole response
+		long heapPerJob = (heapHeld - heapBefore) / jobs;
+		assertTrue(heapPerJob + " bytes of heap per held query", heapPerJob < 8L * AsyncClientPool.BUFFER_SIZE);
+		assertEquals(0, failed.get());
+		assertEquals(jobs, answered.get());
+	}
+
+	private static ClientSettings settings(int maxPerRoute) {
+		return new ClientSettings(maxPerRoute, 10, 20, 0, 20, 5, 30, true, 0);
+	}
+
+	private static int countThreads(String prefix) {
+		Thread[] threads = new Thread[Thread.activeCount() * 2];
+		int count = Thread.enumerate(threads);
+		int ret = 0;
+		for (int i = 0; i < count; i++) {
+			if (threads[i].getName().startsWith(prefix)) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
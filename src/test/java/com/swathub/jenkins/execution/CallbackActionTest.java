@@ -0,0 +1,89 @@
+package com.swathub.jenkins.execution;
+
+import hudson.security.csrf.DefaultCrumbIssuer;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Posts callbacks the way SWAT Hub does, without a login or a CSRF crumb, to a Jenkins
+ * that issues crumbs.
+ */
+public class CallbackActionTest {
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	private static final String BODY = "{\"jobID\":\"job-1\",\"taskID\":\"task-0\",\"status\":\"finished\"}";
+
+	@Before
+	public void setUp() {
+		j.jenkins.setCrumbIssuer(new DefaultCrumbIssuer(false));
+	}
+
+	@Test
+	public void signedCallbackWakesTheRunner() throws Exception {
+		String token = CallbackAction.newToken();
+		CallbackAction.Registration registration = CallbackAction.register(token, "apikey", new PollScheduler(1000, 5000, 2.0));
+		try {
+			assertEquals(200, post(token, BODY, CallbackAction.sign("apikey", BODY.getBytes("UTF-8"))));
+			assertTrue(registration.isReceived());
+		} finally {
+			CallbackAction.unregister(token);
+		}
+	}
+
+	@Test
+	public void badSignatureIsRejected() throws Exception {
+		String token = CallbackAction.newToken();
+		CallbackAction.Registration registration = CallbackAction.register(token, "apikey", new PollScheduler(1000, 5000, 2.0));
+		try {
+			assertEquals(403, post(token, BODY, CallbackAction.sign("otherkey", BODY.getBytes("UTF-8"))));
+			assertEquals(403, post(token, BODY, null));
+			assertFalse(registration.isReceived());
+		} finally {
+			CallbackAction.unregister(token);
+		}
+	}
+
+	@Test
+	public void unknownTokenIsNotFound() throws Exception {
+		assertEquals(404, post("unknown", BODY, CallbackAction.sign("apikey", BODY.getBytes("UTF-8"))));
+	}
+
+	@Test
+	public void signatureIsHmacSha256() throws Exception {
+		// RFC 4231, test case 2
+		assertEquals("sha256=5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843",
+				CallbackAction.sign("Jefe", "what do ya want for nothing?".getBytes("UTF-8")));
+	}
+
+	private int post(String token, String body, String signature) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) new URL(j.getURL(), CallbackAction.URL_NAME + "/" + token).openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			if (signature != null) {
+				connection.setRequestProperty(CallbackAction.SIGNATURE_HEADER, signature);
+			}
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.swathub.jenkins.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Conditional and compressed job queries, against a {@link FakeSwatHub}.
+ */
+public class ConditionalQueryTest {
+	private FakeSwatHub hub;
+	private ClientSettings settings;
+
+	@Before
+	public void setUp() throws Exception {
+		hub = new FakeSwatHub();
+		hub.setDeltaSupported(false);
+		settings = new ClientSettings(5, 5, 10, 0, 20, 5, 30, false, 0);
+	}
+
+	@After
+	public void tearDown() {
+		hub.stop();
+	}
+
+	@Test
+	public void unchangedJobIsNotModified() throws Exception {
+		hub.addJob("job-1", 5);
+		JobStatus first = query("job-1", null);
+		assertEquals("\"r0\"", first.getETag());
+		long bytes = hub.getBytesSent();
+
+		JobStatus second = query("job-1", first.getETag());
+		assertTrue(second.isNotModified());
+		assertTrue(second.getTasks().isEmpty());
+		assertEquals(bytes, hub.getBytesSent());
+		assertEquals("\"r0\"", hub.getRequests().get(1).getHeader("If-None-Match"));
+
+		ExecutionJob job = new ExecutionJob("set", "", QueryMode.FULL);
+		job.update(first);
+		assertTrue(job.update(second).isEmpty());
+		assertEquals("\"r0\"", job.getETag());
+
+		hub.complete("job-1", 1);
+		JobStatus third = query("job-1", job.getETag());
+		assertFalse(third.isNotModified());
+		assertEquals("\"r1\"", third.getETag());
+		assertEquals(1, job.update(third).size());
+	}
+
+	@Test
+	public void withoutEtagEveryQueryIsAnswered() throws Exception {
+		hub.setEtagSupported(false);
+		hub.addJob("job-1", 5);
+		JobStatus first = query("job-1", null);
+		assertNull(first.getETag());
+		assertFalse(query("job-1", first.getETag()).isNotModified());
+	}
+
+	@Test
+	public void responseIsDecompressed() throws Exception {
+		hub.addJob("job-1", 50, 0, 10);
+		JobStatus status = query("job-1", null);
+		assertEquals(50, status.getTasks().size());
+		assertEquals("Element #login not found", status.getTasks().get(9).getError());
+
+		List<FakeSwatHub.Request> requests = hub.getRequests();
+		assertTrue(requests.get(0).getHeader("Accept-Encoding").contains("gzip"));
+	}
+
+	/**
+	 * Polls a 300-task job with long descriptions, which changes on every third poll,
+	 * with and without compression and conditional queries.
+	 */
+	@Test
+	public void compressionAndEtagSaveBandwidth() throws Exception {
+		hub.setDescriptionLength(300);
+		hub.setEtagSupported(false);
+		hub.setGzipSupported(false);
+		long plainBytes = poll("plain");
+
+		hub.setEtagSupported(true);
+		hub.setGzipSupported(true);
+		long savedBytes = poll("saved");
+
+		assertTrue("gzip and ETag " + savedBytes + " bytes, plain " + plainBytes + " bytes", savedBytes * 10 < plainBytes);
+	}
+
+	private long poll(String jobID) throws Exception {
+		hub.addJob(jobID, 300);
+		hub.reset();
+		ExecutionJob job = new ExecutionJob(jobID, "", QueryMode.FULL);
+		for (int poll = 1; poll <= 30; poll++) {
+			hub.complete(jobID, poll / 3);
+			job.update(query(jobID, job.getETag()));
+		}
+		assertEquals(10, job.getTracker().getCompletedCount());
+		return hub.getBytesSent();
+	}
+
+	private JobStatus query(String jobID, String etag) throws Exception {
+		return new ExecutionBuilder.GetCallable(hub.getApiBase() + "/jobs/" + jobID + "/query", "user", "key",
+				FakeSwatHub.noProxy(), settings, QueryMode.FULL, null, 0, etag).call();
+	}
+}
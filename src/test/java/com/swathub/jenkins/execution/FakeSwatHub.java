@@ -0,0 +1,508 @@
+package com.swathub.jenkins.execution;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stand-in for the SWAT Hub API on a local port, for tests and benchmarks.
+ *
+ * <p>
+ * Serves <tt>/run</tt>, <tt>/jobs/{jobID}/query</tt>, <tt>/jobs/query?jobIDs=...</tt> and
+ * <tt>/jobs/{jobID}/stop</tt> below {@link #getApiBase()} for simulated jobs, whose tasks
+ * complete one after another on a configurable timeline. Depending on its switches the
+ * server answers delta and long-poll queries, conditional queries and gzip requests like
+ * the real one does, or rejects them like an older one. Canned responses added with
+ * {@link #enqueue} are served before anything else, to inject faults.
+ */
+public class FakeSwatHub {
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Map<String, Job> jobs = new HashMap<String, Job>();
+	private final LinkedList<Response> canned = new LinkedList<Response>();
+	private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+	private final AtomicInteger jobCount = new AtomicInteger();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private boolean deltaSupported = true;
+	private boolean etagSupported = true;
+	private boolean gzipSupported = true;
+	private int runTaskCount = 10;
+	private long runTaskStep = 0;
+	private int descriptionLength = 40;
+
+	/**
+	 * A request the server received.
+	 */
+	public static class Request {
+		private final String method;
+		private final String path;
+		private final String query;
+		private final Headers headers;
+		private final byte[] body;
+
+		private Request(String method, String path, String query, Headers headers, byte[] body) {
+			this.method = method;
+			this.path = path;
+			this.query = query;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * Returns the path below the API base, e.g. <tt>/jobs/job-1/query</tt>.
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Returns the decoded query parameter, or null.
+		 */
+		public String getParameter(String name) {
+			return parseQuery(query).get(name);
+		}
+
+		public String getHeader(String name) {
+			return headers.getFirst(name);
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+	}
+
+	private static class Response {
+		private final int status;
+		private final String body;
+		private final String[] headers;
+
+		private Response(int status, String body, String[] headers) {
+			this.status = status;
+			this.body = body;
+			this.headers = headers;
+		}
+	}
+
+	private static class Job {
+		private final String jobID;
+		private final long[] completeAt;
+		private final long startedAt = System.currentTimeMillis();
+		private final int failEvery;
+		private int forced;
+		private boolean stopped;
+
+		private Job(String jobID, long[] completeAt, int failEvery) {
+			this.jobID = jobID;
+			this.completeAt = completeAt;
+			this.failEvery = failEvery;
+		}
+
+		/**
+		 * Returns the number of tasks completed by now; tasks complete in order.
+		 */
+		private synchronized int getCompleted() {
+			if (stopped) {
+				return completeAt.length;
+			}
+			long elapsed = System.currentTimeMillis() - startedAt;
+			int ret = forced;
+			while (ret < completeAt.length && completeAt[ret] <= elapsed) {
+				ret++;
+			}
+			return ret;
+		}
+
+		/**
+		 * Returns milliseconds until the next task completes, or -1 if all did.
+		 */
+		private synchronized long getNextChange() {
+			int completed = getCompleted();
+			if (completed >= completeAt.length) {
+				return -1;
+			}
+			return Math.max(completeAt[completed] - (System.currentTimeMillis() - startedAt), 0);
+		}
+	}
+
+	public FakeSwatHub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the base URL of the workspace API, as built by {@link ExecutionBuilder}.
+	 */
+	public String getApiBase() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/owner/workspace";
+	}
+
+	/**
+	 * Returns the proxy settings of a Jenkins without a proxy, as passed to the API calls.
+	 */
+	public static HashMap<String, String> noProxy() {
+		HashMap<String, String> ret = new HashMap<String, String>();
+		ret.put("server", "");
+		ret.put("port", "");
+		ret.put("username", "");
+		ret.put("password", "");
+		return ret;
+	}
+
+	/**
+	 * Adds a job whose <tt>taskCount</tt> tasks complete one every <tt>step</tt> milliseconds.
+	 * Every <tt>failEvery</tt>-th task fails; 0 for none.
+	 */
+	public synchronized void addJob(String jobID, int taskCount, long step, int failEvery) {
+		long[] completeAt = new long[taskCount];
+		for (int i = 0; i < taskCount; i++) {
+			completeAt[i] = (i + 1) * step;
+		}
+		jobs.put(jobID, new Job(jobID, completeAt, failEvery));
+	}
+
+	/**
+	 * Adds a job whose tasks only complete through {@link #complete(String, int)}.
+	 */
+	public synchronized void addJob(String jobID, int taskCount) {
+		addJob(jobID, taskCount, Long.MAX_VALUE / (taskCount + 1), 0);
+	}
+
+	/**
+	 * Completes the first <tt>count</tt> tasks of a job, if they aren't yet.
+	 */
+	public void complete(String jobID, int count) {
+		Job job = getJob(jobID);
+		synchronized (job) {
+			job.forced = Math.max(job.forced, Math.min(count, job.completeAt.length));
+		}
+	}
+
+	/**
+	 * Sets the tasks of the jobs started through <tt>/run</tt>.
+	 */
+	public synchronized void setRunTasks(int taskCount, long step) {
+		this.runTaskCount = taskCount;
+		this.runTaskStep = step;
+	}
+
+	/**
+	 * Sets the length of the task descriptions, which make up most of a query response.
+	 */
+	public synchronized void setDescriptionLength(int descriptionLength) {
+		this.descriptionLength = descriptionLength;
+	}
+
+	/**
+	 * Switches support for <tt>since</tt>/<tt>wait</tt>; without it they are rejected with 400
+	 * and responses carry no revision.
+	 */
+	public synchronized void setDeltaSupported(boolean deltaSupported) {
+		this.deltaSupported = deltaSupported;
+	}
+
+	public synchronized void setEtagSupported(boolean etagSupported) {
+		this.etagSupported = etagSupported;
+	}
+
+	public synchronized void setGzipSupported(boolean gzipSupported) {
+		this.gzipSupported = gzipSupported;
+	}
+
+	/**
+	 * Serves the given response to a later request, after the responses enqueued before it.
+	 *
+	 * @param headers
+	 *      alternating header names and values.
+	 */
+	public synchronized void enqueue(int status, String body, String... headers) {
+		canned.add(new Response(status, body, headers));
+	}
+
+	public List<Request> getRequests() {
+		synchronized (requests) {
+			return new ArrayList<Request>(requests);
+		}
+	}
+
+	/**
+	 * Returns the response body bytes sent so far, after compression.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Returns true if <tt>/jobs/{jobID}/stop</tt> was called for the job.
+	 */
+	public synchronized boolean isStopped(String jobID) {
+		Job job = jobs.get(jobID);
+		return job != null && job.stopped;
+	}
+
+	public void reset() {
+		requests.clear();
+		bytesSent.set(0);
+	}
+
+	/**
+	 * Returns the body of a job query for <tt>taskCount</tt> tasks of which the first
+	 * <tt>completed</tt> are done, without a server, e.g. for parser benchmarks.
+	 */
+	public static String jobJson(String jobID, int taskCount, int completed, int descriptionLength) {
+		return toJson(jobID, taskCount, completed, 0, 0, descriptionLength, null, false);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String prefix = "/api/owner/workspace";
+		path = path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+		String query = exchange.getRequestURI().getRawQuery();
+		requests.add(new Request(exchange.getRequestMethod(), path, query, exchange.getRequestHeaders(), readAll(exchange.getRequestBody())));
+
+		Response response;
+		synchronized (this) {
+			response = canned.poll();
+		}
+		if (response != null) {
+			send(exchange, response.status, response.body, response.headers);
+			return;
+		}
+
+		Map<String, String> params = parseQuery(query);
+		String[] segments = path.split("/");
+		if (path.equals("/run") && exchange.getRequestMethod().equals("POST")) {
+			String jobID = "job-" + jobCount.incrementAndGet();
+			synchronized (this) {
+				addJob(jobID, runTaskCount, runTaskStep, 0);
+			}
+			send(exchange, 200, "{\"jobID\": \"" + jobID + "\"}");
+		} else if (path.equals("/jobs/query")) {
+			queryBatch(exchange, params.get("jobIDs"));
+		} else if (segments.length == 4 && segments[1].equals("jobs") && segments[3].equals("query")) {
+			query(exchange, segments[2], params);
+		} else if (segments.length == 4 && segments[1].equals("jobs") && segments[3].equals("stop")) {
+			Job job = getJob(segments[2]);
+			if (job != null) {
+				synchronized (job) {
+					job.stopped = true;
+				}
+			}
+			send(exchange, job != null ? 200 : 404, "{}");
+		} else {
+			send(exchange, 404, "{\"error\": \"not found\"}");
+		}
+	}
+
+	private void query(HttpExchange exchange, String jobID, Map<String, String> params) throws IOException {
+		Job job = getJob(jobID);
+		if (job == null) {
+			send(exchange, 404, "{\"error\": \"no such job\"}");
+			return;
+		}
+		String since = params.get("since");
+		String wait = params.get("wait");
+		boolean l_deltaSupported;
+		boolean l_etagSupported;
+		int l_descriptionLength;
+		synchronized (this) {
+			l_deltaSupported = deltaSupported;
+			l_etagSupported = etagSupported;
+			l_descriptionLength = descriptionLength;
+		}
+		if ((since != null || wait != null) && !l_deltaSupported) {
+			send(exchange, 400, "{\"error\": \"unknown parameter\"}");
+			return;
+		}
+
+		int sinceCount = -1;
+		if (since != null) {
+			try {
+				sinceCount = Integer.parseInt(since.substring(1));
+			} catch (RuntimeException e) {
+				send(exchange, 400, "{\"error\": \"invalid revision\"}");
+				return;
+			}
+		}
+		if (wait != null && sinceCount >= 0) {
+			// hold the answer until a task completes or the wait is over
+			long deadline = System.currentTimeMillis() + Long.parseLong(wait) * 1000;
+			while (job.getCompleted() == sinceCount && job.getNextChange() >= 0 && System.currentTimeMillis() < deadline) {
+				try {
+					Thread.sleep(Math.max(Math.min(job.getNextChange(), deadline - System.currentTimeMillis()), 1));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		int completed = job.getCompleted();
+		String etag = "\"r" + completed + (sinceCount >= 0 ? "-" + sinceCount : "") + "\"";
+		if (l_etagSupported && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			send(exchange, 304, null);
+			return;
+		}
+		String body = toJson(job.jobID, job.completeAt.length, completed, Math.max(sinceCount, 0), job.failEvery, l_descriptionLength,
+				l_deltaSupported ? "r" + completed : null, sinceCount >= 0);
+		if (l_etagSupported) {
+			send(exchange, 200, body, "ETag", etag);
+		} else {
+			send(exchange, 200, body);
+		}
+	}
+
+	private void queryBatch(HttpExchange exchange, String jobIDs) throws IOException {
+		StringBuilder body = new StringBuilder("{\"jobs\": [");
+		int l_descriptionLength;
+		synchronized (this) {
+			l_descriptionLength = descriptionLength;
+		}
+		boolean first = true;
+		for (String jobID : (jobIDs != null ? jobIDs : "").split(",")) {
+			Job job = getJob(jobID);
+			if (job == null) {
+				continue;
+			}
+			body.append(first ? "" : ", ");
+			body.append(toJson(job.jobID, job.completeAt.length, job.getCompleted(), 0, job.failEvery, l_descriptionLength, null, false));
+			first = false;
+		}
+		send(exchange, 200, body.append("]}").toString());
+	}
+
+	private synchronized Job getJob(String jobID) {
+		return jobs.get(jobID);
+	}
+
+	private static String toJson(String jobID, int taskCount, int completed, int sinceCount, int failEvery, int descriptionLength,
+			String revision, boolean delta) {
+		StringBuilder description = new StringBuilder();
+		while (description.length() < descriptionLength) {
+			description.append("Open the login page and sign in as a user of the test workspace. ");
+		}
+		description.setLength(descriptionLength);
+
+		StringBuilder ret = new StringBuilder(64 + taskCount * (descriptionLength + 120));
+		ret.append("{\"jobID\": \"").append(jobID).append("\", \"name\": \"Job ").append(jobID).append("\", \"status\": \"")
+				.append(completed >= taskCount ? "finished" : "running").append("\"");
+		if (revision != null) {
+			ret.append(", \"revision\": \"").append(revision).append("\", \"delta\": ").append(delta);
+		}
+		ret.append(", \"tasks\": [");
+		boolean first = true;
+		for (int i = delta ? sinceCount : 0; i < taskCount; i++) {
+			boolean done = i < completed;
+			if (delta && !done) {
+				break;
+			}
+			boolean failed = done && failEvery > 0 && (i + 1) % failEvery == 0;
+			ret.append(first ? "" : ", ");
+			ret.append("{\"taskID\": \"task-").append(i).append("\", \"status\": \"")
+					.append(done ? (failed ? "failed" : "finished") : "running")
+					.append("\", \"description\": \"").append(description).append(" #").append(i)
+					.append("\", \"duration\": ").append(done ? 1.5 + i % 7 : 0)
+					.append(", \"resultID\": \"result-").append(i).append("\"")
+					.append(", \"error\": ").append(failed ? "\"Element #login not found\"" : "null")
+					.append(", \"tags\": [\"smoke\", \"login\"]}");
+			first = false;
+		}
+		return ret.append("]}").toString();
+	}
+
+	private void send(HttpExchange exchange, int status, String body, String... headers) throws IOException {
+		for (int i = 0; i + 1 < headers.length; i += 2) {
+			exchange.getResponseHeaders().add(headers[i], headers[i + 1]);
+		}
+		if (body == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+
+		byte[] bytes = body.getBytes("UTF-8");
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		boolean gzip;
+		synchronized (this) {
+			gzip = gzipSupported && acceptEncoding != null && acceptEncoding.contains("gzip");
+		}
+		if (gzip) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream out = new GZIPOutputStream(compressed);
+			out.write(bytes);
+			out.close();
+			bytes = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		// counted first, the client may go on as soon as it has read the body
+		bytesSent.addAndGet(bytes.length);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> ret = new HashMap<String, String>();
+		if (query == null) {
+			return ret;
+		}
+		for (String pair : query.split("&")) {
+			int index = pair.indexOf('=');
+			try {
+				if (index > 0) {
+					ret.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		return ret;
+	}
+}
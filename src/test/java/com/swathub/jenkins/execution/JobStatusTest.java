@@ -0,0 +1,92 @@
+package com.swathub.jenkins.execution;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JobStatusTest {
+	@Test
+	public void keepsOnlyTheFieldsInUse() throws Exception {
+		JobStatus status = JobStatus.parse(stream("{\"jobID\": \"job-1\", \"name\": \"Regression\", \"status\": \"running\"," +
+				" \"owner\": {\"name\": \"x\", \"tasks\": [1, 2]}, \"revision\": 42, \"delta\": true, \"tasks\": [" +
+				"{\"taskID\": \"t1\", \"status\": \"finished\", \"description\": \"Login\", \"duration\": 12.5, \"resultID\": \"r1\"," +
+				" \"error\": null, \"tags\": [\"smoke\", \" login \", \"\"], \"steps\": [{\"status\": \"failed\"}]}," +
+				"{\"taskID\": \"t2\", \"status\": \"failed\", \"description\": null, \"duration\": \"3\", \"error\": \"Element not found\"," +
+				" \"tags\": \"smoke, search\"}," +
+				"{\"taskID\": \"t3\", \"status\": \"running\"}]}"));
+
+		assertEquals("job-1", status.getJobID());
+		assertEquals("Regression", status.getName());
+		assertEquals("running", status.getStatus());
+		assertEquals("42", status.getRevision());
+		assertTrue(status.isDelta());
+		assertFalse(status.isCompleted());
+		assertEquals(3, status.getTasks().size());
+
+		JobStatus.Task t1 = status.getTasks().get(0);
+		assertEquals("t1", t1.getTaskID());
+		assertEquals(12.5, t1.getDuration(), 0);
+		assertEquals("r1", t1.getResultID());
+		assertFalse(t1.hasError());
+		assertEquals(Arrays.asList("smoke", "login"), t1.getTags());
+		assertTrue(t1.isCompleted());
+
+		JobStatus.Task t2 = status.getTasks().get(1);
+		assertEquals("", t2.getDescription());
+		assertEquals(3.0, t2.getDuration(), 0);
+		assertEquals("Element not found", t2.getError());
+		assertEquals(Arrays.asList("smoke", "search"), t2.getTags());
+		assertTrue(t2.isCompleted());
+
+		JobStatus.Task t3 = status.getTasks().get(2);
+		assertNull(t3.getResultID());
+		assertTrue(t3.getTags().isEmpty());
+		assertFalse(t3.isCompleted());
+	}
+
+	@Test
+	public void serverWithoutRevisionIsNotDelta() throws Exception {
+		JobStatus status = JobStatus.parse(stream("{\"status\": \"finished\", \"tasks\": []}"));
+		assertNull(status.getRevision());
+		assertFalse(status.isDelta());
+		assertTrue(status.isCompleted());
+		assertTrue(status.getTasks().isEmpty());
+	}
+
+	@Test
+	public void generatedPayloadIsParsed() throws Exception {
+		JobStatus status = JobStatus.parse(stream(FakeSwatHub.jobJson("job-1", 1000, 400, 200)));
+		assertEquals(1000, status.getTasks().size());
+		assertEquals("finished", status.getTasks().get(399).getStatus());
+		assertEquals("running", status.getTasks().get(400).getStatus());
+	}
+
+	@Test
+	public void batchIsKeyedByJobID() throws Exception {
+		Map<String, JobStatus> jobs = JobStatus.parseBatch(stream("{\"count\": 3, \"jobs\": [" +
+				"{\"jobID\": \"job-1\", \"status\": \"finished\", \"tasks\": [{\"taskID\": \"t1\", \"status\": \"finished\"}]}," +
+				"{\"status\": \"running\"}," +
+				"{\"jobID\": \"job-2\", \"status\": \"running\", \"tasks\": []}]}"));
+		assertEquals(2, jobs.size());
+		assertTrue(jobs.get("job-1").isCompleted());
+		assertEquals(1, jobs.get("job-1").getTasks().size());
+		assertEquals("running", jobs.get("job-2").getStatus());
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedResponseFails() throws Exception {
+		JobStatus.parse(stream("{\"status\": \"running\", \"tasks\": [{\"taskID\": \"t1\""));
+	}
+
+	private static ByteArrayInputStream stream(String json) throws IOException {
+		return new ByteArrayInputStream(json.getBytes("UTF-8"));
+	}
+}
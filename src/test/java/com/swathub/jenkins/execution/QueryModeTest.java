@@ -0,0 +1,133 @@
+package com.swathub.jenkins.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Delta and long-poll queries through {@link ExecutionBuilder.GetCallable}, against a {@link FakeSwatHub}.
+ */
+public class QueryModeTest {
+	private FakeSwatHub hub;
+	private ClientSettings settings;
+
+	@Before
+	public void setUp() throws Exception {
+		hub = new FakeSwatHub();
+		hub.setEtagSupported(false);
+		hub.setGzipSupported(false);
+		settings = new ClientSettings(5, 5, 10, 0, 20, 5, 30, false, 0);
+	}
+
+	@After
+	public void tearDown() {
+		hub.stop();
+	}
+
+	@Test
+	public void deltaQueryReturnsChangedTasksOnly() throws Exception {
+		hub.addJob("job-1", 10);
+		hub.complete("job-1", 3);
+		JobStatus full = query("job-1", QueryMode.DELTA, null, 0);
+		assertEquals(10, full.getTasks().size());
+		assertEquals("r3", full.getRevision());
+		assertFalse(full.isDelta());
+
+		hub.complete("job-1", 5);
+		JobStatus delta = query("job-1", QueryMode.DELTA, full.getRevision(), 0);
+		assertTrue(delta.isDelta());
+		assertEquals("r5", delta.getRevision());
+		assertEquals(2, delta.getTasks().size());
+		assertEquals("task-3", delta.getTasks().get(0).getTaskID());
+		assertEquals("finished", delta.getTasks().get(1).getStatus());
+
+		List<FakeSwatHub.Request> requests = hub.getRequests();
+		assertNull(requests.get(0).getParameter("since"));
+		assertEquals("r3", requests.get(1).getParameter("since"));
+		assertNull(requests.get(1).getParameter("wait"));
+	}
+
+	@Test
+	public void longPollIsHeldUntilATaskCompletes() throws Exception {
+		hub.addJob("job-1", 3, 1000, 0);
+		JobStatus full = query("job-1", QueryMode.LONG_POLL, null, 0);
+		assertEquals("r0", full.getRevision());
+
+		long start = System.currentTimeMillis();
+		JobStatus changed = query("job-1", QueryMode.LONG_POLL, full.getRevision(), 5);
+		long elapsed = System.currentTimeMillis() - start;
+		assertEquals("r1", changed.getRevision());
+		assertEquals(1, changed.getTasks().size());
+		assertTrue("answered after " + elapsed + " ms", elapsed >= 500 && elapsed < 4000);
+		assertEquals("5", hub.getRequests().get(1).getParameter("wait"));
+	}
+
+	@Test
+	public void longPollAnswersWhenTheWaitIsOver() throws Exception {
+		hub.addJob("job-1", 3);
+		long start = System.currentTimeMillis();
+		JobStatus unchanged = query("job-1", QueryMode.LONG_POLL, "r0", 1);
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		assertEquals("r0", unchanged.getRevision());
+		assertTrue(unchanged.getTasks().isEmpty());
+	}
+
+	@Test
+	public void fallsBackToFullQueryIfServerRejectsDelta() throws Exception {
+		hub.setDeltaSupported(false);
+		hub.addJob("job-1", 10);
+		hub.complete("job-1", 4);
+
+		JobStatus status = query("job-1", QueryMode.LONG_POLL, "r2", 5);
+		assertNull(status.getRevision());
+		assertFalse(status.isDelta());
+		assertEquals(10, status.getTasks().size());
+
+		List<FakeSwatHub.Request> requests = hub.getRequests();
+		assertEquals(2, requests.size());
+		assertEquals("r2", requests.get(0).getParameter("since"));
+		assertNull(requests.get(1).getParameter("since"));
+	}
+
+	/**
+	 * Polls a 500-task job to the end in each mode and compares the bytes transferred.
+	 */
+	@Test
+	public void deltaModeTransfersLessThanFullMode() throws Exception {
+		long fullBytes = pollToEnd("full", QueryMode.FULL);
+		long deltaBytes = pollToEnd("delta", QueryMode.DELTA);
+		assertTrue("delta " + deltaBytes + " bytes, full " + fullBytes + " bytes", deltaBytes * 5 < fullBytes);
+	}
+
+	private long pollToEnd(String jobID, QueryMode mode) throws Exception {
+		hub.addJob(jobID, 500);
+		hub.reset();
+		TaskTracker tracker = new TaskTracker();
+		String revision = null;
+		int completions = 0;
+		for (int poll = 1; poll <= 25; poll++) {
+			hub.complete(jobID, poll * 20);
+			JobStatus status = query(jobID, mode, revision, 0);
+			revision = status.getRevision();
+			for (TaskTracker.Transition transition : tracker.update(status.getTasks())) {
+				if (transition.isCompletion()) {
+					completions++;
+				}
+			}
+		}
+		assertEquals(500, completions);
+		return hub.getBytesSent();
+	}
+
+	private JobStatus query(String jobID, QueryMode mode, String since, int waitSeconds) throws Exception {
+		return new ExecutionBuilder.GetCallable(hub.getApiBase() + "/jobs/" + jobID + "/query", "user", "key",
+				FakeSwatHub.noProxy(), settings, mode, since, waitSeconds, null).call();
+	}
+}
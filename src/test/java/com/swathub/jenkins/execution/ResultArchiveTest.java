@@ -0,0 +1,166 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResultArchiveTest {
+	private File dir;
+	private File report;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("swathub-archive", "");
+		dir.delete();
+		dir.mkdirs();
+		report = File.createTempFile("swat_result", ".xml");
+	}
+
+	@After
+	public void tearDown() {
+		ResultArchive.evict("folder");
+		deleteTree(dir);
+		report.delete();
+	}
+
+	@Test
+	public void archivesAreCachedPerJobAndEvicted() {
+		ResultArchive archive = ResultArchive.get("folder/job", dir);
+		assertSame(archive, ResultArchive.get("folder/job", dir));
+
+		// deleting a folder drops the jobs inside it
+		ResultArchive.evict("folder");
+		assertNotSame(archive, ResultArchive.get("folder/job", dir));
+
+		// a job created in another directory under the same name
+		File other = new File(dir, "other");
+		assertNotSame(ResultArchive.get("folder/job", dir), ResultArchive.get("folder/job", other));
+	}
+
+	@Test
+	public void indexChangedOnDiskIsReloaded() throws Exception {
+		ResultArchive archive = ResultArchive.get("folder/job", dir);
+		append(archive, 1, 3);
+		append(archive, 2, 3);
+		assertEquals(2, archive.getTrend(10).size());
+
+		// the job is deleted and created again while the archive is still cached
+		deleteTree(dir);
+		dir.mkdirs();
+		ResultArchive recreated = ResultArchive.get("folder/job", dir);
+		assertSame(archive, recreated);
+		assertTrue(archive.getTrend(10).isEmpty());
+
+		append(archive, 1, 2);
+		List<ResultArchive.Build> trend = archive.getTrend(10);
+		assertEquals(1, trend.size());
+		assertEquals(2, trend.get(0).getCount());
+		assertEquals(2 * 13, new File(dir, "results.bin").length());
+	}
+
+	@Test
+	public void recordsOfDiscardedBuildsArePruned() throws Exception {
+		ResultArchive archive = ResultArchive.get("folder/job", dir);
+		for (int build = 1; build <= 8; build++) {
+			append(archive, build, build);
+		}
+
+		// builds 1 to 5 were deleted by the build discarder
+		archive.prune(6, 100);
+		List<ResultArchive.Build> trend = archive.getTrend(10);
+		assertEquals(3, trend.size());
+		assertEquals(8, trend.get(0).getNumber());
+		assertEquals(6, trend.get(2).getNumber());
+		assertEquals((6 + 7 + 8) * 13, new File(dir, "results.bin").length());
+		assertEquals(21, runs(archive.getSlowest(10, 10)));
+
+		// the pruned files are read back the same after a restart
+		ResultArchive.evict("folder/job");
+		ResultArchive reloaded = ResultArchive.get("folder/job", dir);
+		assertEquals(3, reloaded.getTrend(10).size());
+		assertEquals(21, runs(reloaded.getSlowest(10, 10)));
+		append(reloaded, 9, 1);
+		assertEquals((6 + 7 + 8 + 1) * 13, new File(dir, "results.bin").length());
+	}
+
+	@Test
+	public void longNamesAreKeptAndPrunedNamesDropped() throws Exception {
+		StringBuilder longName = new StringBuilder();
+		while (longName.length() < 70000) {
+			longName.append("\u65e5\u672c ");
+		}
+		ResultArchive archive = ResultArchive.get("folder/job", dir);
+		append(archive, 1, "old case");
+		append(archive, 2, longName.toString());
+		append(archive, 3, longName.toString());
+		long namesLength = new File(dir, "names.bin").length();
+
+		archive.prune(2, 100);
+		assertTrue(new File(dir, "names.bin").length() < namesLength);
+		ResultArchive.evict("folder/job");
+		List<ResultArchive.Case> cases = ResultArchive.get("folder/job", dir).getSlowest(10, 10);
+		assertEquals(1, cases.size());
+		assertEquals(longName.toString(), cases.get(0).getName());
+		assertEquals(2, cases.get(0).getRuns());
+	}
+
+	@Test
+	public void fewDroppedBuildsDontRewriteTheFiles() throws Exception {
+		ResultArchive archive = ResultArchive.get("folder/job", dir);
+		for (int build = 1; build <= 10; build++) {
+			append(archive, build, 1);
+		}
+		archive.prune(1, 9);
+		assertEquals(10, archive.getTrend(20).size());
+		archive.prune(1, 5);
+		assertEquals(5, archive.getTrend(20).size());
+	}
+
+	private void append(ResultArchive archive, int build, int cases) throws Exception {
+		StringBuilder xml = new StringBuilder();
+		for (int i = 0; i < cases; i++) {
+			xml.append("<testcase name=\"case ").append(i).append("\" time=\"").append(i + 1).append("\" status=\"finished\"/>");
+		}
+		append(archive, build, xml);
+	}
+
+	private void append(ResultArchive archive, int build, String name) throws Exception {
+		append(archive, build, new StringBuilder("<testcase name=\"").append(name).append("\" time=\"1\" status=\"failed\"/>"));
+	}
+
+	private void append(ResultArchive archive, int build, StringBuilder cases) throws Exception {
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<testsuites><testsuite name=\"set\">");
+		xml.append(cases);
+		xml.append("</testsuite></testsuites>");
+		FilePath path = new FilePath(report);
+		path.write(xml.toString(), "UTF-8");
+		archive.append(build, path);
+	}
+
+	private static int runs(List<ResultArchive.Case> cases) {
+		int ret = 0;
+		for (ResultArchive.Case c : cases) {
+			ret += c.getRuns();
+		}
+		return ret;
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,140 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResultWriterTest {
+	private File dir;
+	private FilePath resultFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("swathub", "");
+		dir.delete();
+		dir.mkdirs();
+		resultFile = new FilePath(new File(dir, "swat_result.xml"));
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void totalsAreWrittenPerSuite() throws Exception {
+		ExecutionJob smoke = job("smoke", "{\"name\": \"Regression\", \"status\": \"running\", \"tasks\": [" +
+				"{\"taskID\": \"t1\", \"status\": \"running\", \"description\": \"Login\"}," +
+				"{\"taskID\": \"t2\", \"status\": \"running\", \"description\": \"Search\"}," +
+				"{\"taskID\": \"t3\", \"status\": \"running\", \"description\": \"Logout\"}," +
+				"{\"taskID\": \"t4\", \"status\": \"running\", \"description\": \"Cart\"}]}");
+		ExecutionJob login = job("login", "{\"name\": \"Regression\", \"status\": \"running\", \"tasks\": [" +
+				"{\"taskID\": \"t5\", \"status\": \"running\", \"description\": \"Sign up\"}]}");
+		ResultWriter writer = new ResultWriter(resultFile, Arrays.asList(smoke, login));
+
+		update(writer, smoke, "{\"name\": \"Regression\", \"status\": \"running\", \"tasks\": [" +
+				"{\"taskID\": \"t1\", \"status\": \"finished\", \"description\": \"Login\", \"duration\": 2}," +
+				"{\"taskID\": \"t2\", \"status\": \"failed\", \"description\": \"Search\", \"duration\": 1, \"error\": \"Element not found\"}," +
+				"{\"taskID\": \"t3\", \"status\": \"failed\", \"description\": \"Logout\", \"duration\": 0.5}]}");
+		update(writer, login, "{\"name\": \"Regression\", \"status\": \"finished\", \"tasks\": [" +
+				"{\"taskID\": \"t5\", \"status\": \"finished\", \"description\": \"Sign up\", \"duration\": 4}]}");
+		writer.finish();
+
+		Document report = read();
+		Element suites = report.getDocumentElement();
+		assertTotals(suites, 5, 1, 1, 1, 7.5);
+		NodeList suiteList = suites.getElementsByTagName("testsuite");
+		assertEquals(2, suiteList.getLength());
+
+		Element first = (Element) suiteList.item(0);
+		assertEquals("Regression [smoke]", first.getAttribute("name"));
+		assertTotals(first, 4, 1, 1, 1, 3.5);
+		NodeList cases = first.getElementsByTagName("testcase");
+		assertEquals(4, cases.getLength());
+		assertEquals("Element not found", ((Element) ((Element) cases.item(1)).getElementsByTagName("error").item(0)).getAttribute("message"));
+		assertEquals(1, ((Element) cases.item(2)).getElementsByTagName("failure").getLength());
+		assertEquals("Cart", ((Element) cases.item(3)).getAttribute("name"));
+		assertEquals(1, ((Element) cases.item(3)).getElementsByTagName("skipped").getLength());
+
+		assertTotals((Element) suiteList.item(1), 1, 0, 0, 0, 4);
+		assertEquals(1, dir.listFiles().length);
+	}
+
+	@Test
+	public void reportOfAnEarlierRunIsReplaced() throws Exception {
+		resultFile.write("<testsuites/>", "UTF-8");
+		ExecutionJob job = job("set", "{\"name\": \"Smoke\", \"status\": \"running\", \"tasks\": []}");
+		ResultWriter writer = new ResultWriter(resultFile, Collections.singletonList(job));
+		assertFalse(resultFile.exists());
+
+		writer.abort();
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	/**
+	 * Polls a 50k-task job to the end and checks the report, which is written task by task.
+	 */
+	@Test
+	public void largeJobIsWrittenTaskByTask() throws Exception {
+		ExecutionJob job = new ExecutionJob("set", "", QueryMode.FULL);
+		ResultWriter writer = new ResultWriter(resultFile, Collections.singletonList(job));
+		for (int poll = 1; poll <= 5; poll++) {
+			update(writer, job, FakeSwatHub.jobJson("job-1", 50000, poll * 10000, 40));
+			assertEquals(50000 - poll * 10000, job.getTracker().getPending().size());
+		}
+		writer.finish();
+
+		Element suite = (Element) read().getElementsByTagName("testsuite").item(0);
+		assertEquals("Test Set", suite.getAttribute("name"));
+		assertEquals("50000", suite.getAttribute("tests"));
+		assertEquals("0", suite.getAttribute("skipped"));
+		assertEquals(50000, suite.getElementsByTagName("testcase").getLength());
+	}
+
+	private static ExecutionJob job(String label, String json) throws Exception {
+		ExecutionJob job = new ExecutionJob(label, "", QueryMode.FULL);
+		job.update(JobStatus.parse(new ByteArrayInputStream(json.getBytes("UTF-8"))));
+		return job;
+	}
+
+	/**
+	 * Feeds a query result to the job and writes its completed tasks, as the runner does.
+	 */
+	private static void update(ResultWriter writer, ExecutionJob job, String json) throws Exception {
+		for (TaskTracker.Transition transition : job.update(JobStatus.parse(new ByteArrayInputStream(json.getBytes("UTF-8"))))) {
+			if (transition.isCompletion()) {
+				writer.add(job, transition.getTask());
+			}
+		}
+	}
+
+	private Document read() throws Exception {
+		assertTrue(resultFile.exists());
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(dir, "swat_result.xml"));
+	}
+
+	private static void assertTotals(Element element, int tests, int failures, int errors, int skipped, double time) {
+		assertEquals(String.valueOf(tests), element.getAttribute("tests"));
+		assertEquals(String.valueOf(failures), element.getAttribute("failures"));
+		assertEquals(String.valueOf(errors), element.getAttribute("errors"));
+		assertEquals(String.valueOf(skipped), element.getAttribute("skipped"));
+		assertEquals(time, Double.parseDouble(element.getAttribute("time")), 0.001);
+	}
+}
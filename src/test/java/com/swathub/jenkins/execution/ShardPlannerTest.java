@@ -0,0 +1,101 @@
+package com.swathub.jenkins.execution;
+
+import hudson.FilePath;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardPlannerTest {
+	@Test
+	public void heaviestLabelsAreSpreadFirst() {
+		Map<String, Double> weights = new HashMap<String, Double>();
+		weights.put("a", 70.0);
+		weights.put("b", 50.0);
+		weights.put("c", 40.0);
+		weights.put("d", 30.0);
+		weights.put("e", 10.0);
+
+		Map<String, String> shards = ShardPlanner.assign(Arrays.asList("a", "b", "c", "d", "e"), weights, Arrays.asList("node1", "node2"));
+		assertEquals("node1", shards.get("a"));
+		assertEquals("node2", shards.get("b"));
+		assertEquals("node2", shards.get("c"));
+		assertEquals("node1", shards.get("d"));
+		assertEquals("node2", shards.get("e"));
+		assertEquals(100.0, load(shards, weights, "node1"), 0);
+		assertEquals(100.0, load(shards, weights, "node2"), 0);
+	}
+
+	@Test
+	public void labelsWithoutHistoryGetTheMeanWeight() {
+		Map<String, Double> weights = new HashMap<String, Double>();
+		weights.put("a", 100.0);
+		weights.put("b", 20.0);
+
+		// c and d weigh 60 each: a, b | c, d
+		Map<String, String> shards = ShardPlanner.assign(Arrays.asList("a", "b", "c", "d"), weights, Arrays.asList("node1", "node2"));
+		assertEquals("node1", shards.get("a"));
+		assertEquals("node2", shards.get("c"));
+		assertEquals("node2", shards.get("d"));
+		assertEquals("node1", shards.get("b"));
+	}
+
+	@Test
+	public void everyLabelGetsANode() {
+		List<String> labels = Arrays.asList("a", "b", "c");
+		Map<String, String> shards = ShardPlanner.assign(labels, new HashMap<String, Double>(), Arrays.asList("node1", "node2", "node3", "node4"));
+		assertEquals(3, shards.size());
+		assertEquals(3, new HashSet<String>(shards.values()).size());
+	}
+
+	@Test
+	public void durationsAreReadFromTheSuitesOfAReport() throws Exception {
+		File file = File.createTempFile("swat_result", ".xml");
+		try {
+			FilePath report = new FilePath(file);
+			report.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<testsuites>" +
+					"<testsuite name=\"Regression [smoke]\" tests=\"2\" time=\"12.5\"><testcase name=\"x\" time=\"12.5\"/></testsuite>" +
+					"<testsuite name=\"Regression [login, search]\" tests=\"1\" time=\"40\"/>" +
+					"<testsuite name=\"Single job\" tests=\"1\" time=\"3\"/>" +
+					"</testsuites>", "UTF-8");
+
+			Map<String, Double> durations = ShardPlanner.readDurations(report);
+			assertEquals(2, durations.size());
+			assertEquals(12.5, durations.get("smoke"), 0);
+			assertEquals(40.0, durations.get("login, search"), 0);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void missingOrBrokenReportHasNoDurations() throws Exception {
+		File file = File.createTempFile("swat_result", ".xml");
+		try {
+			FilePath report = new FilePath(file);
+			report.write("<testsuites><testsuite name=\"Regression [smoke]\" time=\"1\"", "UTF-8");
+			assertTrue(ShardPlanner.readDurations(report).isEmpty());
+			assertTrue(ShardPlanner.readDurations(null).isEmpty());
+		} finally {
+			file.delete();
+		}
+		assertTrue(ShardPlanner.readDurations(new FilePath(file)).isEmpty());
+	}
+
+	private static double load(Map<String, String> shards, Map<String, Double> weights, String node) {
+		double ret = 0;
+		for (Map.Entry<String, String> entry : shards.entrySet()) {
+			if (entry.getValue().equals(node)) {
+				ret += weights.get(entry.getKey());
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,33 @@
+package com.swathub.jenkins.execution;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubmissionCacheTest {
+	@Test
+	public void sharedSubmissionIsNotStopped() throws Exception {
+		SubmissionCache cache = new SubmissionCache();
+		String key = SubmissionCache.getKey("http://hub/api/o/w", "user", "testset=1");
+
+		SubmissionCache.Lease owner = cache.acquire(key, 0);
+		assertTrue(owner.isOwner());
+		cache.submitted(key, "job-1", 1000);
+		SubmissionCache.Lease attached = cache.acquire(key, 0);
+		assertEquals("job-1", attached.getJobID());
+
+		assertFalse(cache.stopping(key));
+		cache.release(key);
+		assertTrue(cache.stopping(key));
+
+		// a job being stopped is not attached to
+		assertTrue(cache.acquire(key, 0).isOwner());
+	}
+
+	@Test
+	public void uncachedSubmissionIsStopped() {
+		assertTrue(new SubmissionCache().stopping(SubmissionCache.getKey("http://hub/api/o/w", "user", "testset=1")));
+	}
+}
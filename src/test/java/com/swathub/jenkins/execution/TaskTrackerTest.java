@@ -0,0 +1,90 @@
+package com.swathub.jenkins.execution;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TaskTrackerTest {
+	@Test
+	public void changesAreReportedOnce() throws Exception {
+		TaskTracker tracker = new TaskTracker();
+		List<TaskTracker.Transition> transitions = tracker.update(tasks("t1:queued", "t2:running"));
+		assertEquals(2, transitions.size());
+		assertNull(transitions.get(0).getPreviousStatus());
+		assertTrue(tracker.update(tasks("t1:queued", "t2:running")).isEmpty());
+
+		transitions = tracker.update(tasks("t1:running", "t2:running"));
+		assertEquals(1, transitions.size());
+		assertEquals("queued", transitions.get(0).getPreviousStatus());
+		assertFalse(transitions.get(0).isCompletion());
+	}
+
+	@Test
+	public void completedTasksAreDropped() throws Exception {
+		TaskTracker tracker = new TaskTracker();
+		tracker.update(tasks("t1:running", "t2:running", "t3:running"));
+
+		List<TaskTracker.Transition> transitions = tracker.update(tasks("t1:finished", "t2:failed", "t3:running"));
+		assertEquals(2, transitions.size());
+		assertTrue(transitions.get(0).isCompletion());
+		assertEquals(2, transitions.get(1).getCompletedCount());
+		assertEquals(1, tracker.getPending().size());
+		assertEquals("t3", tracker.getPending().get(0).getTaskID());
+		assertEquals(3, tracker.getTotalCount());
+		assertTrue(tracker.isCompleted("t1"));
+
+		// completed tasks in later full responses are ignored
+		assertTrue(tracker.update(tasks("t1:finished", "t2:failed", "t3:running")).isEmpty());
+		assertEquals(2, tracker.getCompletedCount());
+	}
+
+	@Test
+	public void deltaUpdatesAreMerged() throws Exception {
+		TaskTracker tracker = new TaskTracker();
+		tracker.update(tasks("t1:running", "t2:running", "t3:running"));
+		long cursor = tracker.getCursor();
+
+		tracker.update(tasks("t2:finished"));
+		tracker.update(tasks("t3:stopping"));
+		assertEquals(2, tracker.getPending().size());
+		assertEquals(1, tracker.getChangedSince(cursor).size());
+		assertEquals("t3", tracker.getChangedSince(cursor).get(0).getTaskID());
+		assertTrue(tracker.getChangedSince(tracker.getCursor()).isEmpty());
+	}
+
+	@Test
+	public void replayHandsOutCompletedTasksAgain() throws Exception {
+		TaskTracker tracker = new TaskTracker();
+		tracker.update(tasks("t1:finished", "t2:running", "t3:failed"));
+		tracker.replay();
+
+		List<TaskTracker.Transition> transitions = tracker.update(tasks("t1:finished", "t2:finished", "t3:failed"));
+		assertEquals(3, transitions.size());
+		int replayed = 0;
+		for (TaskTracker.Transition transition : transitions) {
+			assertTrue(transition.isCompletion());
+			replayed += transition.isReplayed() ? 1 : 0;
+		}
+		assertEquals(2, replayed);
+		assertEquals(3, tracker.getCompletedCount());
+		assertTrue(tracker.update(tasks("t1:finished", "t2:finished", "t3:failed")).isEmpty());
+	}
+
+	/**
+	 * Returns tasks given as <tt>taskID:status</tt>.
+	 */
+	static List<JobStatus.Task> tasks(String... tasks) throws Exception {
+		StringBuilder json = new StringBuilder("{\"tasks\": [");
+		for (int i = 0; i < tasks.length; i++) {
+			String[] task = tasks[i].split(":");
+			json.append(i > 0 ? ", " : "").append("{\"taskID\": \"").append(task[0]).append("\", \"status\": \"").append(task[1]).append("\"}");
+		}
+		return JobStatus.parse(new ByteArrayInputStream(json.append("]}").toString().getBytes("UTF-8"))).getTasks();
+	}
+}
@@ -0,0 +1,179 @@
+package com.swathub.jenkins.execution;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Retries, backoff, timeouts and the circuit breaker of {@link Utils}, against faults injected by a {@link FakeSwatHub}.
+ */
+public class UtilsTest {
+	private FakeSwatHub hub;
+	private String queryUrl;
+
+	@Before
+	public void setUp() throws Exception {
+		hub = new FakeSwatHub();
+		hub.addJob("job-1", 5);
+		queryUrl = hub.getApiBase() + "/jobs/job-1/query";
+	}
+
+	@After
+	public void tearDown() {
+		hub.stop();
+	}
+
+	@Test
+	public void serverErrorsAreRetried() throws Exception {
+		hub.enqueue(502, "bad gateway");
+		hub.enqueue(503, "unavailable", "Retry-After", "0");
+
+		JobStatus status = new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings(3, 5));
+		assertEquals(5, status.getTasks().size());
+		assertEquals(3, hub.getRequests().size());
+	}
+
+	@Test
+	public void retryAfterIsHonoured() throws Exception {
+		hub.enqueue(429, "slow down", "Retry-After", "1");
+
+		long start = System.currentTimeMillis();
+		new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings(3, 5));
+		assertTrue(System.currentTimeMillis() - start >= 1000);
+		assertEquals(2, hub.getRequests().size());
+	}
+
+	@Test
+	public void givesUpAfterMaxRetries() throws Exception {
+		hub.enqueue(500, "error", "Retry-After", "0");
+		hub.enqueue(500, "error", "Retry-After", "0");
+		hub.enqueue(500, "error", "Retry-After", "0");
+
+		try {
+			new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings(1, 5));
+			fail();
+		} catch (ApiException e) {
+			assertEquals(500, e.getStatusCode());
+		}
+		assertEquals(2, hub.getRequests().size());
+	}
+
+	@Test
+	public void clientErrorsAreNotRetried() throws Exception {
+		try {
+			new Utils().apiQuery(hub.getApiBase() + "/jobs/unknown/query", "user", "key", FakeSwatHub.noProxy(), settings(3, 5));
+			fail();
+		} catch (ApiException e) {
+			assertEquals(404, e.getStatusCode());
+		}
+		assertEquals(1, hub.getRequests().size());
+	}
+
+	@Test
+	public void postIsOnlyRetriedIfNotProcessed() throws Exception {
+		hub.enqueue(503, "unavailable", "Retry-After", "0");
+		new Utils().apiPost(hub.getApiBase() + "/run", "user", "key", "", FakeSwatHub.noProxy(), settings(3, 5));
+		assertEquals(2, hub.getRequests().size());
+
+		hub.reset();
+		hub.enqueue(500, "error", "Retry-After", "0");
+		try {
+			new Utils().apiPost(hub.getApiBase() + "/run", "user", "key", "", FakeSwatHub.noProxy(), settings(3, 5));
+			fail();
+		} catch (ApiException e) {
+			assertEquals(500, e.getStatusCode());
+		}
+		assertEquals(1, hub.getRequests().size());
+	}
+
+	@Test
+	public void readTimeoutFailsTheCall() throws Exception {
+		// a long-poll query the server holds for longer than the read timeout
+		try {
+			new Utils().apiQuery(queryUrl + "?since=r0&wait=5", "user", "key", FakeSwatHub.noProxy(),
+					new ClientSettings(5, 5, 1, 0, 20, 5, 30, false, 0));
+			fail();
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void breakerOpensAfterConsecutiveFailures() throws Exception {
+		ClientSettings settings = settings(0, 3);
+		for (int i = 0; i < 3; i++) {
+			hub.enqueue(500, "error");
+			try {
+				new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings);
+				fail();
+			} catch (ApiException e) {
+				assertEquals(500, e.getStatusCode());
+			}
+		}
+		CircuitBreaker breaker = CircuitBreaker.get(URI.create(queryUrl), settings);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		try {
+			new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings);
+			fail();
+		} catch (CircuitOpenException e) {
+			// rejected without a request
+		}
+		assertEquals(3, hub.getRequests().size());
+
+		// after the cooldown a trial call is let through and closes the breaker again
+		Thread.sleep(1100);
+		new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertTrue(breaker.getSummary().contains("breaker opened 1 times"));
+	}
+
+	@Test
+	public void interruptedTrialCallReopensTheBreaker() throws Exception {
+		ClientSettings settings = settings(0, 1);
+		// the trial call goes through the non-blocking client, whose callers can be interrupted while they wait
+		final ClientSettings trialSettings = new ClientSettings(5, 5, 10, 0, 20, 1, 1, true, 0);
+		hub.enqueue(500, "error");
+		try {
+			new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings);
+			fail();
+		} catch (ApiException e) {
+			assertEquals(500, e.getStatusCode());
+		}
+		CircuitBreaker breaker = CircuitBreaker.get(URI.create(queryUrl), settings);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		// the trial call is a long poll the server holds, and the build is aborted meanwhile
+		Thread.sleep(1100);
+		Thread trial = new Thread() {
+			@Override
+			public void run() {
+				try {
+					new Utils().apiQuery(queryUrl + "?since=r0&wait=5", "user", "key", FakeSwatHub.noProxy(), trialSettings);
+				} catch (Exception e) {
+					// interrupted
+				}
+			}
+		};
+		trial.start();
+		Thread.sleep(300);
+		trial.interrupt();
+		trial.join(5000);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		Thread.sleep(1100);
+		new Utils().apiQuery(queryUrl, "user", "key", FakeSwatHub.noProxy(), settings);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	private static ClientSettings settings(int maxRetries, int breakerThreshold) {
+		return new ClientSettings(5, 5, 10, maxRetries, 20, breakerThreshold, 1, false, 0);
+	}
+}